@@ -0,0 +1,312 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+/**
+ * Sends the first request for a domain's apex on its own and holds back the other types and
+ * subdomains of that domain until it is answered. If the apex does not exist nothing below it
+ * does either (RFC 8020), so the held requests are cancelled instead of sent. Only an
+ * NXDOMAIN for the apex itself counts: one without answers that is authoritative or carries
+ * the SOA of the apex, not one for the target of a CNAME.
+ *
+ * Domains whose requests do not include the apex are not held back, and neither are requests
+ * past the per domain or overall limit of held requests. Scheduling is done by the map thread,
+ * answers come in from the writer and failures from the resolvers. If no apex is answered for
+ * as long as a request can take, e.g. because a resolver thread died with it, the domains
+ * still waiting are given up on and their requests sent.
+ */
+public class ApexScheduler {
+
+	private static final int AA = 0x04;
+
+	/**
+	 * The requests for one domain, waiting on its apex request.
+	 */
+	public static class Group
+	{
+		final String domain;
+		final LinkedBlockingQueue<Group> completed;
+		List<DnsRequest> held = new ArrayList<DnsRequest>();
+		boolean pending = true;
+		boolean exists = true;
+		boolean nonexistent = false;
+		private boolean done = false;
+
+		Group(String domain, LinkedBlockingQueue<Group> completed)
+		{
+			this.domain = domain;
+			this.completed = completed;
+		}
+
+		/**
+		 * Called once the apex request was answered.
+		 */
+		public void complete(DnsResponse response)
+		{
+			complete(isNonexistent(domain, response.getWire()));
+		}
+
+		/**
+		 * Called if the apex request failed for good.
+		 */
+		public void fail()
+		{
+			complete(false);
+		}
+
+		private void complete(boolean nonexistent)
+		{
+			synchronized (this) {
+				if(done)
+					return;
+				done = true;
+				this.nonexistent = nonexistent;
+			}
+			completed.offer(this);
+		}
+	}
+
+	final int maxPending;
+	final int maxHeldPerDomain;
+	final int maxHeld;
+	final long maxWaitMs;
+	final LinkedBlockingQueue<Group> completed = new LinkedBlockingQueue<Group>();
+	final Map<String, Group> groups = new HashMap<String, Group>();
+	Group last = null;
+	int pending = 0;
+	int holding = 0;
+
+	long held = 0;
+	long cancelled = 0;
+	long nonexistent = 0;
+	long unscheduled = 0;
+	long expired = 0;
+
+	/**
+	 * @param maxPending how many domains may wait on their apex at once
+	 * @param maxHeldPerDomain how many requests may wait on one apex, the rest are sent right away
+	 * @param maxHeld how many requests may wait on all apexes together
+	 * @param maxWaitMs how long to wait for any apex answer before giving up on all of them
+	 */
+	public ApexScheduler(int maxPending, int maxHeldPerDomain, int maxHeld, long maxWaitMs)
+	{
+		this.maxPending = Math.max(1, maxPending);
+		this.maxHeldPerDomain = maxHeldPerDomain;
+		this.maxHeld = maxHeld;
+		this.maxWaitMs = maxWaitMs;
+	}
+
+	/**
+	 * @param requestTimeoutMs the longest a request can take over all its transmissions
+	 * @return a scheduler configured by dns.collection.apex.*, or null unless dns.collection.apex.first is on
+	 */
+	public static ApexScheduler create(Configuration conf, long requestTimeoutMs)
+	{
+		if(!conf.getBoolean("dns.collection.apex.first", false))
+			return null;
+		// some slack for the time the apex request spends queued
+		return new ApexScheduler(conf.getInt("dns.collection.apex.max.pending", 1000),
+				conf.getInt("dns.collection.apex.max.held.per.domain", 100),
+				conf.getInt("dns.collection.apex.max.held", 100000),
+				conf.getLong("dns.collection.apex.max.wait.ms", 2 * requestTimeoutMs));
+	}
+
+	/**
+	 * @return true if the request can be sent now, false if it was held back or cancelled
+	 */
+	public boolean schedule(DnsRequest request)
+	{
+		Group group = groups.get(request.domain);
+		if(group == null)
+		{
+			// nothing to wait for unless the domain starts with its apex
+			if(request.subdomain.length() > 0)
+				return true;
+
+			// the requests for a line come together, so the previous domain is finished with
+			if(last != null && !last.pending)
+				groups.remove(last.domain);
+			group = new Group(request.domain, completed);
+			groups.put(request.domain, group);
+			last = group;
+			pending++;
+			request.group = group;
+			return true;
+		}
+
+		if(group.pending)
+		{
+			// wordlists put many requests behind one apex, past the limits they go unscheduled
+			if(group.held.size() >= maxHeldPerDomain || holding >= maxHeld)
+			{
+				unscheduled++;
+				return true;
+			}
+			group.held.add(request);
+			holding++;
+			held++;
+			return false;
+		}
+		if(!group.exists)
+		{
+			cancelled++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Handles the apex answers that came in since the last call. Waits for one if too many
+	 * domains are pending, or if wait is set and any are, but no longer than maxWaitMs.
+	 *
+	 * @return held requests that can be sent now
+	 */
+	public List<DnsRequest> released(boolean wait) throws InterruptedException
+	{
+		List<DnsRequest> released = new ArrayList<DnsRequest>();
+		Group group;
+		if(pending > 0 && (wait || pending >= maxPending))
+		{
+			group = completed.poll(maxWaitMs, TimeUnit.MILLISECONDS);
+			if(group != null)
+				release(group, released);
+			else
+				expire(released);
+		}
+		while((group = completed.poll()) != null)
+			release(group, released);
+		return released;
+	}
+
+	// sends what waits on apexes that never completed, rather than hang the task
+	private void expire(List<DnsRequest> released)
+	{
+		for(Group group : new ArrayList<Group>(groups.values()))
+		{
+			if(group.pending)
+			{
+				expired++;
+				group.fail();
+				release(group, released);
+			}
+		}
+	}
+
+	private void release(Group group, List<DnsRequest> released)
+	{
+		// an expired domain whose apex was answered after all
+		if(!group.pending)
+			return;
+		pending--;
+		holding -= group.held.size();
+		group.pending = false;
+		if(group.nonexistent)
+		{
+			group.exists = false;
+			nonexistent++;
+			cancelled += group.held.size();
+		}
+		else
+		{
+			// answered or not, nothing says the domain is gone
+			released.addAll(group.held);
+		}
+		group.held = null;
+
+		if(group != last)
+			groups.remove(group.domain);
+	}
+
+	/**
+	 * @return true if the response says the domain does not exist: NXDOMAIN without answers,
+	 * authoritative or with the SOA of the domain itself
+	 */
+	static boolean isNonexistent(String domain, byte[] wire)
+	{
+		if(DnsResponse.getRcode(wire) != Rcode.NXDOMAIN)
+			return false;
+		// answers mean a CNAME chain, the NXDOMAIN is for its target
+		if(wire[6] != 0 || wire[7] != 0)
+			return false;
+		if((wire[2] & AA) != 0)
+			return true;
+
+		try {
+			Name apex = Name.fromString(domain, Name.root);
+			for(Record r : new Message(wire).getSectionArray(Section.AUTHORITY))
+			{
+				if(r.getType() == Type.SOA && r.getName().equals(apex))
+					return true;
+			}
+		} catch (TextParseException e) {
+			return false;
+		} catch (IOException e) {
+			return false;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true while some domains still wait on their apex
+	 */
+	public boolean hasPending() {
+		return pending > 0;
+	}
+
+	public long getHeld() {
+		return held;
+	}
+
+	public long getCancelled() {
+		return cancelled;
+	}
+
+	public long getNonexistent() {
+		return nonexistent;
+	}
+
+	/**
+	 * @return the domains given up on because no apex was answered in time
+	 */
+	public long getExpired() {
+		return expired;
+	}
+
+	/**
+	 * @return the requests sent right away because too many were held already
+	 */
+	public long getUnscheduled() {
+		return unscheduled;
+	}
+}
@@ -0,0 +1,373 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * A query budget per nameserver shared by all map tasks of a job, coordinated through ZooKeeper.
+ *
+ * The budget of each nameserver is cut into slices of a fixed rate, a task holds a slice by
+ * owning an ephemeral znode for it, so the slices of a task that dies are freed with its session.
+ * The slices a task holds are the ceiling of its {@link NameserverRateLimiter}. Every renew
+ * period a task that kept hitting its ceiling claims more free slices and a task that used
+ * much less than it holds gives the surplus back. A task that is below its fair share and
+ * finds no free slice marks itself as waiting, then tasks holding more than their fair share
+ * give the excess back, so tasks that start later get their share.
+ *
+ * Layout: root/job/members/task, root/job/nameserver/slices/slice-i and
+ * root/job/nameserver/waiting/task
+ */
+public class ClusterBudget implements Watcher, Runnable {
+
+	private static final Logger LOG = Logger.getLogger(ClusterBudget.class);
+
+	/** the rate of a task without slices, so it can tell it has work waiting */
+	public static final double IDLE_QPS = 1;
+	private static final String SLICE = "slice-";
+
+	final String connectString;
+	final int sessionTimeoutMs;
+	final String jobPath;
+	final String member;
+	final String[] nameservers;
+	final int numSlices;
+	final double sliceQps;
+	final long renewMs;
+	final double totalQps;
+	final Random random = new Random();
+
+	NameserverRateLimiter limiter;
+	ZooKeeper zk;
+	final List<Set<Integer>> held = new ArrayList<Set<Integer>>();
+	final boolean[] waiting;
+	final long[] lastAcquired;
+	final long[] lastWaited;
+	long lastRenew;
+	long claims = 0;
+	long releases = 0;
+	volatile boolean running = true;
+	Thread thread;
+
+	public ClusterBudget(String connectString, int sessionTimeoutMs, String root, String job, String task,
+			String[] nameservers, double totalQps, double sliceQps, long renewMs)
+	{
+		this.connectString = connectString;
+		this.sessionTimeoutMs = sessionTimeoutMs;
+		this.jobPath = root + "/" + job;
+		this.member = task;
+		this.nameservers = nameservers;
+		this.numSlices = Math.max(1, (int)Math.ceil(totalQps / sliceQps));
+		this.sliceQps = sliceQps;
+		this.renewMs = renewMs;
+		this.totalQps = totalQps;
+
+		lastAcquired = new long[nameservers.length];
+		lastWaited = new long[nameservers.length];
+		waiting = new boolean[nameservers.length];
+		for(int i = 0; i < nameservers.length; ++i)
+			held.add(new HashSet<Integer>());
+	}
+
+	/**
+	 * @return a budget configured by dns.collection.budget.*, or null unless dns.collection.budget.zookeepers is set
+	 */
+	public static ClusterBudget create(Configuration conf, String job, String task, String[] nameservers)
+	{
+		String zookeepers = conf.get("dns.collection.budget.zookeepers");
+		if(zookeepers == null)
+			return null;
+
+		float totalQps = conf.getFloat("dns.collection.budget.qps", 0);
+		if(totalQps <= 0)
+			throw new IllegalArgumentException("dns.collection.budget.qps must be set with dns.collection.budget.zookeepers");
+
+		return new ClusterBudget(zookeepers,
+				conf.getInt("dns.collection.budget.session.timeout.ms", 30000),
+				conf.get("dns.collection.budget.root", "/dns-mining/budget"),
+				job, task, nameservers, totalQps,
+				conf.getFloat("dns.collection.budget.slice.qps", totalQps / 100),
+				conf.getLong("dns.collection.budget.renew.ms", 1000));
+	}
+
+	/**
+	 * Joins the job's budget, claims a fair share of the free slices and starts renewing.
+	 * 
+	 * @param limiter the rate limiter the slices are the ceiling of
+	 */
+	public void start(NameserverRateLimiter limiter) throws IOException, InterruptedException
+	{
+		this.limiter = limiter;
+		try {
+			connect();
+			renew();
+		} catch (KeeperException e) {
+			throw new IOException("Could not join the query budget at "+connectString+jobPath, e);
+		}
+
+		thread = new Thread(this, "dns-budget");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void close() throws InterruptedException
+	{
+		running = false;
+		if(thread != null)
+		{
+			thread.interrupt();
+			thread.join();
+		}
+		// the session ends, so every slice it holds is freed at once
+		if(zk != null)
+			zk.close();
+	}
+
+	@Override
+	public void run()
+	{
+		while(running)
+		{
+			try {
+				Thread.sleep(renewMs);
+				renew();
+			} catch (InterruptedException e) {
+				break;
+			} catch (KeeperException.SessionExpiredException e) {
+				LOG.warn("ZooKeeper session expired, joining the query budget again");
+				try {
+					reconnect();
+				} catch (Exception e1) {
+					LOG.error("Could not join the query budget again: "+e1.getMessage());
+				}
+			} catch (Exception e) {
+				// keep the slices held so far and try again next time
+				LOG.warn("Could not renew the query budget: "+e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void process(WatchedEvent event)
+	{
+		// state changes are noticed through the exceptions of the next renew
+	}
+
+	private void connect() throws IOException, KeeperException, InterruptedException
+	{
+		zk = new ZooKeeper(connectString, sessionTimeoutMs, this);
+		mkdirs(jobPath + "/members");
+		for(int i = 0; i < nameservers.length; ++i)
+		{
+			mkdirs(nameserverPath(i) + "/slices");
+			mkdirs(nameserverPath(i) + "/waiting");
+		}
+		zk.create(jobPath + "/members/" + member, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+	}
+
+	private synchronized void reconnect() throws IOException, KeeperException, InterruptedException
+	{
+		zk.close();
+		for(int i = 0; i < nameservers.length; ++i)
+		{
+			held.get(i).clear();
+			waiting[i] = false;
+			limiter.setCeiling(i, IDLE_QPS);
+		}
+		connect();
+	}
+
+	/**
+	 * Claims or gives back slices of every nameserver, depending on how the last period went.
+	 */
+	synchronized void renew() throws KeeperException, InterruptedException
+	{
+		long now = System.currentTimeMillis();
+		double periodSecs = lastRenew == 0 ? 0 : (now - lastRenew) / 1000.0;
+		lastRenew = now;
+
+		int members = Math.max(1, zk.getChildren(jobPath + "/members", false).size());
+		int fairShare = Math.max(1, numSlices / members);
+
+		for(int i = 0; i < nameservers.length; ++i)
+		{
+			Set<Integer> mine = held.get(i);
+			long acquired = limiter.getAcquired(i);
+			long waited = limiter.getWaited(i);
+			double usedQps = periodSecs > 0 ? (acquired - lastAcquired[i]) / periodSecs : 0;
+			// only more slices help if the rate is held back by the ceiling, not by errors
+			boolean capped = limiter.getRate(i) >= Math.max(IDLE_QPS, mine.size() * sliceQps) * 0.99;
+			boolean busy = periodSecs == 0 || (waited > lastWaited[i] && capped);
+			lastAcquired[i] = acquired;
+			lastWaited[i] = waited;
+
+			List<String> taken = zk.getChildren(nameserverPath(i) + "/slices", false);
+			int free = numSlices - taken.size();
+
+			int want = mine.size();
+			if(busy)
+			{
+				// straight to the fair share, beyond it a share of what is free
+				want = Math.max(fairShare, mine.size() + Math.max(1, free / members));
+			}
+			else if(mine.size() > 1)
+			{
+				// keep enough to run at 80% of the ceiling
+				int need = Math.max(1, (int)Math.ceil(usedQps / (sliceQps * 0.8)));
+				want = Math.min(mine.size(), need);
+			}
+
+			// others are waiting for their share
+			if(want > fairShare && zk.getChildren(nameserverPath(i) + "/waiting", false).size() > (waiting[i] ? 1 : 0))
+				want = fairShare;
+
+			while(mine.size() > want)
+				release(i, mine);
+			if(mine.size() < want && free > 0)
+				claim(i, mine, taken, want);
+
+			setWaiting(i, busy && mine.size() < fairShare);
+			limiter.setCeiling(i, Math.max(IDLE_QPS, mine.size() * sliceQps));
+		}
+	}
+
+	private void setWaiting(int nameserver, boolean wait) throws KeeperException, InterruptedException
+	{
+		if(wait == waiting[nameserver])
+			return;
+
+		String path = nameserverPath(nameserver) + "/waiting/" + member;
+		try {
+			if(wait)
+				zk.create(path, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+			else
+				zk.delete(path, -1);
+		} catch (KeeperException.NodeExistsException e) {
+			// left from before
+		} catch (KeeperException.NoNodeException e) {
+			// already gone
+		}
+		waiting[nameserver] = wait;
+	}
+
+	private void claim(int nameserver, Set<Integer> mine, List<String> taken, int want) throws KeeperException, InterruptedException
+	{
+		Set<Integer> used = new HashSet<Integer>();
+		for(String name : taken)
+		{
+			if(name.startsWith(SLICE))
+				used.add(Integer.valueOf(name.substring(SLICE.length())));
+		}
+
+		List<Integer> candidates = new ArrayList<Integer>();
+		for(int slice = 0; slice < numSlices; ++slice)
+		{
+			if(!used.contains(slice))
+				candidates.add(slice);
+		}
+		// other tasks are claiming at the same time, start at different slices
+		Collections.shuffle(candidates, random);
+
+		for(Integer slice : candidates)
+		{
+			if(mine.size() >= want)
+				break;
+			try {
+				zk.create(slicePath(nameserver, slice), member.getBytes("UTF-8"), Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+				mine.add(slice);
+				claims++;
+			} catch (KeeperException.NodeExistsException e) {
+				// somebody else was faster
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private void release(int nameserver, Set<Integer> mine) throws KeeperException, InterruptedException
+	{
+		Integer slice = mine.iterator().next();
+		// lower the ceiling before anybody else can take the slice
+		limiter.setCeiling(nameserver, Math.max(IDLE_QPS, (mine.size() - 1) * sliceQps));
+		try {
+			zk.delete(slicePath(nameserver, slice), -1);
+		} catch (KeeperException.NoNodeException e) {
+			// already gone
+		}
+		mine.remove(slice);
+		releases++;
+	}
+
+	private void mkdirs(String path) throws KeeperException, InterruptedException
+	{
+		int i = 0;
+		while(i >= 0)
+		{
+			i = path.indexOf('/', i + 1);
+			String dir = i < 0 ? path : path.substring(0, i);
+			try {
+				zk.create(dir, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			} catch (KeeperException.NodeExistsException e) {
+				// made by another task
+			}
+		}
+	}
+
+	private String nameserverPath(int nameserver) {
+		return jobPath + "/" + nameservers[nameserver];
+	}
+
+	private String slicePath(int nameserver, int slice) {
+		return nameserverPath(nameserver) + "/slices/" + SLICE + slice;
+	}
+
+	public synchronized int getSlices(int nameserver) {
+		return held.get(nameserver).size();
+	}
+
+	public double getTotalQps() {
+		return totalQps;
+	}
+
+	public double getSliceQps() {
+		return sliceQps;
+	}
+
+	public synchronized long getClaims() {
+		return claims;
+	}
+
+	public synchronized long getReleases() {
+		return releases;
+	}
+}
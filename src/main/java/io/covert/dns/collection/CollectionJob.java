@@ -16,10 +16,14 @@
  */
 package io.covert.dns.collection;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
@@ -63,6 +67,20 @@ public class CollectionJob extends Configured implements Tool  {
 		if(conf.get("dns.collection.nameservers") == null)
 			conf.set("dns.collection.nameservers", "127.0.0.1");
 		
+		if(conf.getBoolean("dns.collection.zonesort", false))
+		{
+			// the DedupeJob filter is keyed on the splits of the unsorted input
+			if(conf.get("dns.collection.dedupe.filter") != null)
+				throw new IllegalArgumentException("dns.collection.dedupe.filter can't be used with dns.collection.zonesort, "
+						+"the sorted input has different splits (duplicates end up next to each other there, "
+						+"dns.collection.dedupe finds them)");
+			// group the names by zone first, so the resolvers' caches keep working for them
+			String sortedDir = conf.get("dns.collection.zonesort.dir", outDir+"_sorted");
+			if(ToolRunner.run(new Configuration(conf), new ZoneSortJob(), new String[]{inDir, sortedDir}) != 0)
+				throw new IOException("Failed to sort the input in "+inDir+" by zone");
+			inDir = sortedDir;
+		}
+		
 		Job job = new Job(conf);
 		job.setJobName(CollectionJob.class.getSimpleName()+": types="+types+", dclass="+dclass+
 					   " inDir="+inDir+", outDir="+outDir+", resolvers="+conf.get("dns.collection.nameservers"));
@@ -78,7 +96,37 @@ public class CollectionJob extends Configured implements Tool  {
 		
 		job.setInputFormatClass(DnsRequestInputFormat.class);
 		DnsRequestInputFormat.setInputPaths(job, new Path(inDir));
-		DnsRequestInputFormat.configure(job, dclass.toUpperCase(), Arrays.asList(types.split(",")), Arrays.asList(""));
+		DnsRequestInputFormat.configure(job, dclass.toUpperCase(), Arrays.asList(types.split(",")), 
+				Arrays.asList(conf.get("dns.requests.subdomains", "").split(",")));
+		if(conf.get("dns.requests.wordlist") != null)
+		{
+			// subdomains to enumerate for every domain, shipped through the distributed cache
+			DnsRequestInputFormat.setWordlist(job, new Path(conf.get("dns.requests.wordlist")), 
+					conf.getInt("dns.requests.wordlist.slices", 1));
+		}
+		if(conf.get("dns.collection.dedupe.filter") != null)
+		{
+			// the requests other splits make too, found by DedupeJob
+			DuplicateFilter.addToCache(job, new Path(conf.get("dns.collection.dedupe.filter")), DuplicateFilter.FILTER_PREFIX);
+			job.getConfiguration().setBoolean("dns.collection.dedupe", true);
+		}
+		String index = conf.get("dns.collection.resume.index");
+		if(conf.get("dns.collection.resume") != null)
+		{
+			// index what earlier runs collected, then only ask for the rest
+			if(index == null)
+				index = outDir+"_resume";
+			List<String> indexArgs = new ArrayList<String>();
+			indexArgs.add(index);
+			indexArgs.addAll(Arrays.asList(conf.getStrings("dns.collection.resume")));
+			if(ToolRunner.run(new Configuration(conf), new ResumeIndexJob(), indexArgs.toArray(new String[indexArgs.size()])) != 0)
+				throw new IOException("Failed to index the collected requests in "+conf.get("dns.collection.resume"));
+		}
+		if(index != null)
+		{
+			DuplicateFilter.addToCache(job, new Path(index), DuplicateFilter.COLLECTED_PREFIX);
+			job.getConfiguration().set("dns.collection.resume.index", index);
+		}
 		
 		job.setOutputFormatClass(SequenceFileOutputFormat.class);
 		SequenceFileOutputFormat.setOutputPath(job, new Path(outDir));
@@ -87,6 +135,17 @@ public class CollectionJob extends Configured implements Tool  {
 		
 		int retVal = job.waitForCompletion(true)?0:1;
 		
+		if(retVal == 0)
+		{
+			// the latency percentiles over all tasks
+			Path latencyDir = new Path(outDir, LatencyReport.DIR);
+			FileSystem fs = latencyDir.getFileSystem(conf);
+			LatencyReport latency = LatencyReport.read(fs, latencyDir);
+			latency.writeSummary(fs, new Path(latencyDir, LatencyReport.SUMMARY));
+			for(String line : latency.summarize())
+				Log.info(line);
+		}
+		
 		CounterGroup counters          = job.getCounters().getGroup(CollectionMapper.RESOLVER_GROUP);		
 		Counter constructMessageMS     = counters.findCounter(CollectionMapper.CONSTRUCT_MESSAGE_MS);
 		Counter parseResponseMS        = counters.findCounter(CollectionMapper.PARSE_RESPONSE_MS);
@@ -16,23 +16,22 @@
  */
 package io.covert.dns.collection;
 
-import io.covert.util.Pair;
-import io.covert.util.Utils;
+import io.covert.util.BoundedBuffer;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.mortbay.log.Log;
 import org.xbill.DNS.DClass;
-import org.xbill.DNS.Message;
-import org.xbill.DNS.Record;
+import org.xbill.DNS.Rcode;
 import org.xbill.DNS.Type;
 
 public class CollectionMapper extends Mapper<Text, DnsRequest, Text, BytesWritable>{
@@ -52,24 +51,71 @@ public class CollectionMapper extends Mapper<Text, DnsRequest, Text, BytesWritab
 	public static final String NUM_REQUESTS = "NUM_REQUESTS";
 	public static final String LOOKUP_FAILURES = "LOOKUP_FAILURES";
 	public static final String REQUEST_PARSE_FAILURES = "REQUEST_PARSE_FAILURES";
+	public static final String RETRANSMISSIONS = "RETRANSMISSIONS";
+	public static final String RETRIED = "RETRIED";
+	public static final String GAVE_UP = "GAVE_UP";
+	public static final String HEDGED = "HEDGED";
+	public static final String HEDGE_WINS = "HEDGE_WINS";
+	public static final String TCP_QUERIES = "TCP_QUERIES";
+	public static final String TCP_CONNECTS = "TCP_CONNECTS";
+	public static final String TRUNCATED = "TRUNCATED";
+	public static final String RESPONSE_BYTES = "RESPONSE_BYTES";
+	public static final String CONCURRENCY_LIMIT = "CONCURRENCY_LIMIT";
+	public static final String WILDCARD_PROBES = "WILDCARD_PROBES";
+	public static final String WILDCARD_ZONES = "WILDCARD_ZONES";
+	public static final String WILDCARD_MATCHED = "WILDCARD_MATCHED";
+	public static final String WILDCARD_NOT_SENT = "WILDCARD_NOT_SENT";
+	public static final String WILDCARD_SAVED = "WILDCARD_SAVED";
+	public static final String APEX_HELD = "APEX_HELD";
+	public static final String APEX_NXDOMAIN = "APEX_NXDOMAIN";
+	public static final String APEX_CANCELLED = "APEX_CANCELLED";
+	public static final String APEX_UNSCHEDULED = "APEX_UNSCHEDULED";
+	public static final String APEX_EXPIRED = "APEX_EXPIRED";
+	public static final String DUPLICATES = "DUPLICATES";
+	public static final String DUPLICATES_ELSEWHERE = "DUPLICATES_ELSEWHERE";
+	public static final String ALREADY_COLLECTED = "ALREADY_COLLECTED";
+	public static final String NEW_REQUESTS = "NEW_REQUESTS";
+	public static final String ITERATIVE_QUERIES = "ITERATIVE_QUERIES";
+	public static final String REFERRALS = "REFERRALS";
+	public static final String DELEGATION_CACHE_HITS = "DELEGATION_CACHE_HITS";
+	public static final String FAILED_DIR = "_failed";
+	public static final String RATE_LIMIT_GROUP = "RATE_LIMIT";
+	public static final String RATE_LIMIT_WAIT_MS = "WAIT_MS";
+	public static final String BUDGET_CLAIMS = "BUDGET_CLAIMS";
+	public static final String BUDGET_RELEASES = "BUDGET_RELEASES";
+	public static final String NAMESERVER_GROUP = "NAMESERVERS";
 	
-	final ConcurrentLinkedQueue<DnsRequest> inQueue = new ConcurrentLinkedQueue<DnsRequest>();
-	final ConcurrentLinkedQueue<Pair<Record, Message>> outQueue = new ConcurrentLinkedQueue<Pair<Record, Message>>();
-	final AtomicLong inQueueSize = new AtomicLong(0);
+	BoundedBuffer<DnsRequest> inQueue;
+	BoundedBuffer<DnsResponse> outQueue;
 	List<ResolverThread> threads = new LinkedList<ResolverThread>();
 	WriterThread writer;
-	long maxOutstandingRequests;
+	NameserverRateLimiter rateLimiter;
+	ClusterBudget budget;
+	NameserverSelector nameserverSelector;
+	NameserverTimeouts timeouts;
+	RetryLane retryLane;
+	HedgePolicy hedgePolicy;
+	TcpTransport tcp;
+	ConcurrencyLimiter concurrencyLimiter;
+	IterativeResolver iterative;
+	CollectionMetrics metrics;
+	WildcardDetector wildcards;
+	boolean collapseWildcards;
+	ApexScheduler apexScheduler;
+	DuplicateFilter duplicates;
+	String[] nameservers;
 	
 	protected void setup(Context context) throws java.io.IOException ,InterruptedException 
 	{
 		Configuration conf = context.getConfiguration();
 		
-		writer = new WriterThread(outQueue, context);
-		writer.start();
+		// both hand-offs are bounded, the map thread blocks when the resolvers fall behind
+		// and the resolvers block when the writer falls behind
+		inQueue = new BoundedBuffer<DnsRequest>(conf.getInt("dns.collection.max.outstanding.requests", 5000));
+		outQueue = new BoundedBuffer<DnsResponse>(conf.getInt("dns.collection.max.outstanding.responses", 5000));
 		
 		int numThreads = conf.getInt("dns.collection.num.resolvers", 50);
-		String[] nameservers = conf.get("dns.collection.nameservers").split(",");
-		maxOutstandingRequests = conf.getLong("dns.collection.max.outstanding.requests", 5000);
+		nameservers = conf.get("dns.collection.nameservers").split(",");
 		int timeoutSecs = conf.getInt("dns.collection.timeout.secs", 5);
 		
 		if(nameservers.length == 0)
@@ -77,11 +123,108 @@ public class CollectionMapper extends Mapper<Text, DnsRequest, Text, BytesWritab
 			throw new IOException("dns.collection.num.resolvers was not defined correctly");
 		}
 		
-		for(int i = 0; i < numThreads; ++i)
+		String mode = conf.get("dns.collection.resolver.mode", "blocking");
+		// the most requests the resolvers can have in flight at once
+		int maxConcurrency;
+		if(mode.equals("nio"))
+		{
+			// a few selector threads, each multiplexing many outstanding requests
+			numThreads = conf.getInt("dns.collection.nio.threads", 2);
+			int numChannels = conf.getInt("dns.collection.nio.channels", 4);
+			int maxInFlight = conf.getInt("dns.collection.nio.max.inflight", 4096);
+			for(int i = 0; i < numThreads; ++i)
+			{
+				threads.add(new NioResolverThread(inQueue, outQueue, nameservers, timeoutSecs, numChannels, maxInFlight));
+			}
+			maxConcurrency = numThreads * maxInFlight;
+		}
+		else if(mode.equals("virtual"))
+		{
+			// one dispatcher, every request runs on its own (virtual) thread
+			int maxInFlight = conf.getInt("dns.collection.max.outstanding.requests", 5000);
+			threads.add(new VirtualResolverThread(inQueue, outQueue, nameservers, timeoutSecs, maxInFlight));
+			maxConcurrency = maxInFlight;
+		}
+		else if(mode.equals("iterative"))
+		{
+			// no recursive nameserver, the threads walk down from the roots themselves
+			iterative = IterativeResolver.create(conf);
+			for(int i = 0; i < numThreads; ++i)
+			{
+				threads.add(new IterativeResolverThread(inQueue, outQueue, nameservers, timeoutSecs, iterative));
+			}
+			maxConcurrency = numThreads;
+		}
+		else if(mode.equals("blocking"))
+		{
+			for(int i = 0; i < numThreads; ++i)
+			{
+				threads.add(new ResolverThread(inQueue, outQueue, nameservers, timeoutSecs));
+			}
+			maxConcurrency = numThreads;
+		}
+		else
+		{
+			throw new IOException("Unknown dns.collection.resolver.mode: "+mode);
+		}
+		
+		rateLimiter = NameserverRateLimiter.create(conf, nameservers.length);
+		budget = ClusterBudget.create(conf, context.getJobID().toString(), context.getTaskAttemptID().toString(), nameservers);
+		if(budget != null)
+		{
+			// the budget caps the rate limiter, so there has to be one.  It starts out at the 
+			// whole budget, the slices claimed on start bring it down to this task's share
+			if(rateLimiter == null)
+			{
+				rateLimiter = new NameserverRateLimiter(nameservers.length, budget.getTotalQps(), ClusterBudget.IDLE_QPS, 
+						budget.getTotalQps(), Math.max(1, budget.getSliceQps() / 20), 0.5, 0.05, 200);
+			}
+			budget.start(rateLimiter);
+		}
+		nameserverSelector = NameserverSelector.create(conf, nameservers);
+		timeouts = NameserverTimeouts.create(conf, nameservers.length);
+		
+		if(conf.getInt("dns.collection.retry.attempts", 0) > 0)
+		{
+			// requests that keep failing are written under the job output dir, that dir 
+			// can be the input of another run
+			Path failedPath = new Path(FileOutputFormat.getWorkOutputPath(context), 
+					FAILED_DIR+"/failed-"+context.getTaskAttemptID().getTaskID().getId());
+			retryLane = RetryLane.create(conf, failedPath);
+		}
+		hedgePolicy = HedgePolicy.create(conf, nameservers.length);
+		tcp = TcpTransport.create(conf, nameservers);
+		EdnsOptions edns = EdnsOptions.create(conf);
+		concurrencyLimiter = ConcurrencyLimiter.create(conf, maxConcurrency);
+		wildcards = WildcardDetector.create(conf, nameservers);
+		if(wildcards != null)
+		{
+			wildcards.setRateLimiter(rateLimiter);
+			collapseWildcards = conf.get("dns.collection.wildcard").equals("collapse");
+		}
+		
+		writer = new WriterThread(outQueue, context, conf.getInt("dns.collection.writer.batch", 256), 
+				conf.getBoolean("dns.collection.output.metadata", false), wildcards, collapseWildcards);
+		writer.start();
+		apexScheduler = ApexScheduler.create(conf, timeouts.getMaxRequestMs());
+		duplicates = DuplicateFilter.create(conf, DuplicateFilter.getSplitKey(context.getInputSplit()));
+		
+		// iterative resolution asks none of the configured nameservers
+		metrics = CollectionMetrics.create(conf, context.getTaskAttemptID().toString(), 
+				iterative != null ? new String[0] : nameservers, inQueue, outQueue, threads);
+		
+		for(ResolverThread res : threads)
 		{
-			ResolverThread res = new ResolverThread(inQueue, inQueueSize, outQueue, nameservers, timeoutSecs);
+			res.setRateLimiter(rateLimiter);
+			res.setNameserverSelector(nameserverSelector);
+			res.setTimeouts(timeouts);
+			res.setRetryLane(retryLane);
+			res.setHedgePolicy(hedgePolicy);
+			res.setTcpTransport(tcp);
+			res.setEdns(edns);
+			res.setConcurrencyLimiter(concurrencyLimiter);
+			res.setMetrics(metrics);
 			res.start();
-			threads.add(res);
 		}
 	}
 	
@@ -93,43 +236,83 @@ public class CollectionMapper extends Mapper<Text, DnsRequest, Text, BytesWritab
 	protected void map(Text domain, DnsRequest request, org.apache.hadoop.mapreduce.Mapper<Text,DnsRequest,Text, BytesWritable>.Context context) 
 		throws java.io.IOException ,InterruptedException 
 	{
-		inQueue.add(request);
-		long queueSize = inQueueSize.incrementAndGet();
-		context.setStatus("Queue size: "+queueSize);
-		while(queueSize >= maxOutstandingRequests)
+		if(duplicates != null && duplicates.isDuplicate(request))
+			return;
+		
+		if(apexScheduler != null)
+		{
+			for(DnsRequest released : apexScheduler.released(false))
+				submit(released, context);
+			if(!apexScheduler.schedule(request))
+				return;
+		}
+		submit(request, context);
+	}
+	
+	private void submit(DnsRequest request, Context context) throws InterruptedException
+	{
+		if(wildcards != null && request.subdomain.length() > 0)
+		{
+			// the writer compares the response with the zone's wildcard answers
+			request.wildcard = wildcards.lookup(request);
+			if(wildcards.isSampled(request.wildcard))
+				return;
+		}
+		
+		if(!inQueue.offer(request))
 		{
 			context.getCounter(COUNTER_GROUP, QUEUE_FULL).increment(1);
-			context.setStatus("Queue size: "+queueSize);
-			Utils.sleep(100);
-			queueSize = inQueueSize.get();
+			context.setStatus("Queue size: "+inQueue.size());
+			inQueue.put(request);
 		}
+		context.setStatus("Queue size: "+inQueue.size());
 	}
 	
-	// wait until in queue is empty
-	// notify all threads to finish
-	// wait for outQueue to go to zero, sleep a few seconds, stop writer thread
+	// close the in queue, resolvers drain it and exit
+	// once all resolvers are done close the out queue, writer drains it and exits
 	
 	protected void cleanup(Context context) 
 		throws java.io.IOException ,InterruptedException 
 	{
-		context.setStatus("Cleanup: Queue size: "+ inQueueSize.get());
-		Log.info("Stopping Resolver Threads ...");
-		for(ResolverThread res : threads)
+		if(apexScheduler != null)
 		{
-			res.stopRunning();
+			// the requests still held back go out once their apex is answered
+			while(apexScheduler.hasPending())
+			{
+				for(DnsRequest released : apexScheduler.released(true))
+					submit(released, context);
+				context.progress();
+			}
+			context.getCounter(COUNTER_GROUP, APEX_HELD).increment(apexScheduler.getHeld());
+			context.getCounter(COUNTER_GROUP, APEX_NXDOMAIN).increment(apexScheduler.getNonexistent());
+			context.getCounter(COUNTER_GROUP, APEX_CANCELLED).increment(apexScheduler.getCancelled());
+			context.getCounter(COUNTER_GROUP, APEX_UNSCHEDULED).increment(apexScheduler.getUnscheduled());
+			context.getCounter(COUNTER_GROUP, APEX_EXPIRED).increment(apexScheduler.getExpired());
 		}
 		
-		while(inQueueSize.get() > 0)
+		if(duplicates != null)
 		{
-			context.setStatus("Cleanup: Queue size: "+ inQueueSize.get());
-			Log.info("Cleanup: Queue size: "+ inQueueSize.get());
-			Utils.sleep(1000);
+			context.getCounter(COUNTER_GROUP, DUPLICATES).increment(duplicates.getDuplicates());
+			context.getCounter(COUNTER_GROUP, DUPLICATES_ELSEWHERE).increment(duplicates.getOwnedElsewhere());
+			context.getCounter(COUNTER_GROUP, ALREADY_COLLECTED).increment(duplicates.getAlreadyCollected());
+			context.getCounter(COUNTER_GROUP, NEW_REQUESTS).increment(duplicates.getFresh());
 		}
 		
+		context.setStatus("Cleanup: Queue size: "+ inQueue.size());
+		Log.info("Stopping Resolver Threads ...");
+		inQueue.close();
+		
 		Log.info("Joining Resolver Threads ...");
+		ResolverStats stats = new ResolverStats();
 		for(ResolverThread res : threads)
 		{
-			res.join();
+			while(res.isAlive())
+			{
+				res.join(1000);
+				context.setStatus("Cleanup: Queue size: "+ inQueue.size());
+				context.progress();
+			}
+			
 			context.getCounter(RESOLVER_GROUP, CONSTRUCT_MESSAGE_MS).increment(res.getConstructMessageMS());
 			context.getCounter(RESOLVER_GROUP, PARSE_RESPONSE_MS).increment(res.getParseResponseMS());
 			context.getCounter(RESOLVER_GROUP, TOTAL_REQUEST_HANDLING_MS).increment(res.getTotalRequestHandlingMS());
@@ -139,24 +322,124 @@ public class CollectionMapper extends Mapper<Text, DnsRequest, Text, BytesWritab
 			context.getCounter(RESOLVER_GROUP, LOOKUP_FAILURES).increment(res.getLookupsFailures());
 			context.getCounter(RESOLVER_GROUP, REQUEST_TIMEOUTS).increment(res.getRequestTimeouts());
 			context.getCounter(RESOLVER_GROUP, REQUEST_PARSE_FAILURES).increment(res.getRequestParseFailures());
+			context.getCounter(RESOLVER_GROUP, RETRANSMISSIONS).increment(res.getRetransmissions());
+			context.getCounter(RESOLVER_GROUP, TRUNCATED).increment(res.getTruncated());
+			context.getCounter(RESOLVER_GROUP, RESPONSE_BYTES).increment(res.getResponseBytes());
 			
-			for(Object rcode : res.getRcodes().uniqueSet())
+			long[] rcodes = res.getRcodes();
+			for(int rcode = 0; rcode < rcodes.length; ++rcode)
 			{
-				int count = res.getRcodes().getCount(rcode);
-				context.getCounter(RCODES_GROUP, rcode.toString()).increment(count);
+				if(rcodes[rcode] > 0)
+					context.getCounter(RCODES_GROUP, Rcode.string(rcode)).increment(rcodes[rcode]);
 			}
+			stats.add(res.getStats());
 			
 			Log.info("This thread perfomed: "+res.getNumRequests()+" DNS requests");
+			Log.info("Truncated percent: "+ (double)(res.getTruncated()*100L)/((double)res.getNumRequests()));
+			Log.info("Bytes per response: "+ (double)res.getResponseBytes()/((double)res.getStats().getResponses()));
 			Log.info("ConstructMessage percent: "+ (double)(res.getConstructMessageMS()*100L)/((double)res.getTotalRequestHandlingMS()));
 			Log.info("ParseResponse percent: "+  (double)(res.getParseResponseMS()*100L)/((double)res.getTotalRequestHandlingMS()));
 			Log.info("PerformRequest percent: "+ (double)(res.getPerformRequestMS()*100L)/((double)res.getTotalRequestHandlingMS()));
 			Log.info("---");
 		}
 		
+		// merged with the other tasks' by CollectionJob
+		Path latencyPath = new Path(FileOutputFormat.getWorkOutputPath(context), 
+				LatencyReport.DIR+"/"+LatencyReport.PART_PREFIX+context.getTaskAttemptID().getTaskID().getId());
+		LatencyReport.create(stats, nameservers).write(latencyPath.getFileSystem(context.getConfiguration()), latencyPath);
+		
+		if(budget != null)
+		{
+			budget.close();
+			context.getCounter(RATE_LIMIT_GROUP, BUDGET_CLAIMS).increment(budget.getClaims());
+			context.getCounter(RATE_LIMIT_GROUP, BUDGET_RELEASES).increment(budget.getReleases());
+		}
+		
+		if(rateLimiter != null)
+		{
+			context.getCounter(RATE_LIMIT_GROUP, RATE_LIMIT_WAIT_MS).increment(rateLimiter.getWaitMS());
+			for(int i = 0; i < nameservers.length; ++i)
+			{
+				// summed over all mappers this is the aggregate rate each nameserver settled at
+				long qps = (long)rateLimiter.getRate(i);
+				context.getCounter(RATE_LIMIT_GROUP, "FINAL_QPS:"+nameservers[i]).increment(qps);
+				Log.info("Nameserver "+nameservers[i]+" final rate: "+qps+" qps");
+			}
+		}
+		
+		if(nameserverSelector != null)
+		{
+			for(int i = 0; i < nameservers.length; ++i)
+			{
+				context.getCounter(NAMESERVER_GROUP, "SELECTED:"+nameservers[i]).increment(nameserverSelector.getSelected(i));
+				context.getCounter(NAMESERVER_GROUP, "CIRCUIT_OPENED:"+nameservers[i]).increment(nameserverSelector.getOpened(i));
+				Log.info("Nameserver "+nameservers[i]+" latency EWMA: "+nameserverSelector.getLatencyMs(i)+" ms, error rate EWMA: "+nameserverSelector.getErrorRate(i));
+			}
+		}
+		
+		for(int i = 0; i < nameservers.length; ++i)
+		{
+			Log.info("Nameserver "+nameservers[i]+" smoothed RTT: "+timeouts.getSmoothedRttMs(i)+" ms, timeout: "+timeouts.getTimeoutMs(i, 0)+" ms");
+		}
+		
+		if(retryLane != null)
+		{
+			context.getCounter(RESOLVER_GROUP, RETRIED).increment(retryLane.getRetried());
+			context.getCounter(RESOLVER_GROUP, GAVE_UP).increment(retryLane.getGaveUp());
+			retryLane.close();
+		}
+		
+		if(hedgePolicy != null)
+		{
+			context.getCounter(RESOLVER_GROUP, HEDGED).increment(hedgePolicy.getHedges());
+			context.getCounter(RESOLVER_GROUP, HEDGE_WINS).increment(hedgePolicy.getWins());
+		}
+		
+		if(concurrencyLimiter != null)
+		{
+			// summed over all mappers this is the total concurrency they settled at
+			context.getCounter(RESOLVER_GROUP, CONCURRENCY_LIMIT).increment(concurrencyLimiter.getLimit());
+			Log.info("Final concurrency limit: "+concurrencyLimiter.getLimit()+", baseline RTT: "+concurrencyLimiter.getBaselineRttMs()+" ms, "
+					+concurrencyLimiter.getDrops()+" timeouts in "+concurrencyLimiter.getSamples()+" samples");
+		}
+		
+		if(iterative != null)
+		{
+			context.getCounter(RESOLVER_GROUP, ITERATIVE_QUERIES).increment(iterative.getQueries());
+			context.getCounter(RESOLVER_GROUP, REFERRALS).increment(iterative.getReferrals());
+			context.getCounter(RESOLVER_GROUP, DELEGATION_CACHE_HITS).increment(iterative.getCacheHits());
+			Log.info("Delegation cache: "+iterative.getCacheSize()+" zones");
+		}
+		
+		if(tcp != null)
+		{
+			context.getCounter(RESOLVER_GROUP, TCP_QUERIES).increment(tcp.getQueries());
+			context.getCounter(RESOLVER_GROUP, TCP_CONNECTS).increment(tcp.getConnects());
+			tcp.close();
+		}
+		
+		if(metrics != null)
+			metrics.close();
+		
 		Log.info("Stopping Writer ...");
-		writer.stopRunning();
+		outQueue.close();
 		writer.join();
 		Log.info("Writer Joined");
+		
+		// the writer matches responses against the wildcards
+		if(wildcards != null)
+		{
+			context.getCounter(COUNTER_GROUP, WILDCARD_PROBES).increment(wildcards.getProbes());
+			context.getCounter(COUNTER_GROUP, WILDCARD_ZONES).increment(wildcards.getWildcards());
+			context.getCounter(COUNTER_GROUP, WILDCARD_MATCHED).increment(wildcards.getMatched());
+			context.getCounter(COUNTER_GROUP, WILDCARD_NOT_SENT).increment(wildcards.getNotSent());
+			// what detection saved net of its own probes, negative when it cost queries
+			context.getCounter(COUNTER_GROUP, WILDCARD_SAVED).increment(wildcards.getNotSent() - wildcards.getProbes());
+			wildcards.close();
+		}
+		
+		if(writer.getError() != null)
+			throw new IOException("Writer failed", writer.getError());
 	}
 	
 	
@@ -164,44 +447,125 @@ public class CollectionMapper extends Mapper<Text, DnsRequest, Text, BytesWritab
 	private static class WriterThread extends Thread
 	{
 		Context context;
-		ConcurrentLinkedQueue<Pair<Record, Message>> outQueue;
-		volatile boolean keepRunning = true;
+		BoundedBuffer<DnsResponse> outQueue;
+		volatile Exception error = null;
+		
+		// responses are taken off the queue a batch at a time, with one lock and one wake up
+		final int batchSize;
+		final List<DnsResponse> batch;
+		final boolean metadata;
+		
+		// responses that only hold a zone's wildcard answers are left out, or collapsed into one
+		final WildcardDetector wildcards;
+		final boolean collapseWildcards;
 		
 		StringBuilder buffer = new StringBuilder();
+		byte[] keyBytes = new byte[256];
+		byte[] valueBytes = new byte[4096];
 		Text outKey = new Text();
 		BytesWritable outVal = new BytesWritable();
 		
-		public WriterThread(ConcurrentLinkedQueue<Pair<Record, Message>> outQueue, Context context)
+		public WriterThread(BoundedBuffer<DnsResponse> outQueue, Context context, int batchSize, boolean metadata, 
+				WildcardDetector wildcards, boolean collapseWildcards)
 		{
 			this.context = context;
 			this.outQueue = outQueue;
+			this.batchSize = Math.max(1, batchSize);
+			this.batch = new ArrayList<DnsResponse>(this.batchSize);
+			this.metadata = metadata;
+			this.wildcards = wildcards;
+			this.collapseWildcards = collapseWildcards;
 		}
 		
-		private void stopRunning() {
-			keepRunning = false;
+		private Exception getError() {
+			return error;
 		}
 		
 		@Override
 		public void run() {
-			while(keepRunning || !outQueue.isEmpty())
+			while(true)
 			{
 				try {
-					Pair<Record, Message> value = outQueue.remove();
-					
-					buffer.setLength(0);
-					buffer.append(value.getKey().getName().toString()).append("\t");
-					buffer.append(DClass.string(value.getKey().getDClass())).append("\t");
-					buffer.append(Type.string(value.getKey().getType()));					
-					outKey.set(buffer.toString());
+					batch.clear();
+					if(outQueue.takeAll(batch, batchSize) == 0)
+						break;
 					
-					byte[] result = value.getValue().toWire();
+					for(int i = 0; i < batch.size(); ++i)
+						write(batch.get(i));
+				} catch (InterruptedException e) {
+					error = e;
+					break;
+				}
+			}
+		}
+		
+		private void write(DnsResponse value) throws InterruptedException
+		{
+			try {
+				DnsRequest request = value.getRequest();
+				if(request.group != null)
+					request.group.complete(value);
+				
+				if(request.wildcard != null && wildcards.matches(request.wildcard, value.getWire()))
+				{
+					// one *.domain response stands in for all of them
+					WildcardDetector.Zone zone = request.wildcard;
+					if(!collapseWildcards || zone.getResponse() == null || !wildcards.report(zone))
+						return;
+					request = new DnsRequest("*", request.domain, request.requestType, request.dclass);
+					value = new DnsResponse(request, zone.getResponse());
+				}
+				setKey(request);
+				
+				// the response bytes exactly as received
+				byte[] result = value.getWire();
+				if(metadata)
+				{
+					int length = result.length + ResponseMetadata.LENGTH;
+					if(valueBytes.length < length)
+						valueBytes = new byte[Math.max(length, valueBytes.length * 2)];
+					System.arraycopy(result, 0, valueBytes, 0, result.length);
+					ResponseMetadata.write(value, valueBytes, result.length);
+					outVal.set(valueBytes, 0, length);
+				}
+				else
+				{
 					outVal.set(result, 0, result.length);
-					
-					context.write(outKey, outVal);
-				} catch (Exception e) {
-					Utils.sleep(100);
 				}
+				
+				context.write(outKey, outVal);
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				Log.warn("Failed writing response", e);
+				if(error == null)
+					error = e;
+			}
+		}
+		
+		// "name TAB class TAB type", set from bytes without an intermediate String
+		private void setKey(DnsRequest request)
+		{
+			buffer.setLength(0);
+			request.appendName(buffer).append('\t');
+			buffer.append(DClass.string(request.getDclass())).append('\t');
+			buffer.append(Type.string(request.getRequestType()));
+			
+			int length = buffer.length();
+			if(keyBytes.length < length)
+				keyBytes = new byte[Math.max(length, keyBytes.length * 2)];
+			for(int i = 0; i < length; ++i)
+			{
+				char c = buffer.charAt(i);
+				if(c >= 0x80)
+				{
+					// not ASCII, let Text do the UTF-8
+					outKey.set(buffer.toString());
+					return;
+				}
+				keyBytes[i] = (byte)c;
 			}
+			outKey.set(keyBytes, 0, length);
 		}
 	}
 }
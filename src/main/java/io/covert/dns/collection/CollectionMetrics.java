@@ -0,0 +1,445 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import io.covert.util.BoundedBuffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Live metrics of a running collection task: queue depths, requests in flight, and per
+ * nameserver the rate of responses, the timeout rate and latency percentiles. Rates and
+ * percentiles cover the last few sampling intervals, the histograms are halved every interval
+ * so older samples fade out.
+ *
+ * Resolver threads record latencies into striped buckets without taking a lock, the sampler
+ * drains them into the histograms it reads the percentiles from.
+ *
+ * They are registered as JMX MBeans under io.covert.dns.collection, and with
+ * dns.collection.metrics.http.port also served as JSON from /metrics on the loopback interface.
+ */
+public class CollectionMetrics implements CollectionMetricsMBean {
+
+	private static final Logger LOG = Logger.getLogger(CollectionMetrics.class);
+	public static final String DOMAIN = "io.covert.dns.collection";
+
+	/**
+	 * Latency buckets that many threads record into at once, each thread picks a stripe by its id.
+	 */
+	static class Recorder
+	{
+		final AtomicLongArray[] stripes;
+
+		Recorder(int numStripes)
+		{
+			stripes = new AtomicLongArray[numStripes];
+			for(int i = 0; i < numStripes; ++i)
+				stripes[i] = new AtomicLongArray(LatencyHistogram.NUM_BUCKETS);
+		}
+
+		void record(long nanos)
+		{
+			AtomicLongArray stripe = stripes[(int)(Thread.currentThread().getId() % stripes.length)];
+			stripe.incrementAndGet(LatencyHistogram.index(Math.max(0, nanos)));
+		}
+
+		/**
+		 * Moves everything recorded so far into the histogram.
+		 *
+		 * @return the number of values moved
+		 */
+		long drainTo(LatencyHistogram into)
+		{
+			long drained = 0;
+			for(AtomicLongArray stripe : stripes)
+			{
+				for(int i = 0; i < LatencyHistogram.NUM_BUCKETS; ++i)
+				{
+					if(stripe.get(i) == 0)
+						continue;
+					long n = stripe.getAndSet(i, 0);
+					into.counts[i] += n;
+					into.count += n;
+					drained += n;
+				}
+			}
+			return drained;
+		}
+	}
+
+	public static class Nameserver implements NameserverMetricsMBean
+	{
+		final String name;
+		final Recorder recorder;
+		final AtomicLong timeouts = new AtomicLong();
+		// only used by the sampler
+		final LatencyHistogram latencies = new LatencyHistogram();
+
+		// as of the last sample
+		long lastTimeouts = 0;
+		volatile long responses = 0;
+		volatile long sampledResponses = 0;
+		volatile long sampledTimeouts = 0;
+		volatile double qps = 0;
+		volatile double timeoutRate = 0;
+		volatile long p50 = 0;
+		volatile long p99 = 0;
+		volatile long p999 = 0;
+
+		Nameserver(String name, int numStripes)
+		{
+			this.name = name;
+			this.recorder = new Recorder(numStripes);
+		}
+
+		void sample(double secs)
+		{
+			// older values fade out before the new ones come in
+			latencies.decay();
+			long dr = recorder.drainTo(latencies);
+			long t = timeouts.get();
+			long dt = t - lastTimeouts;
+			lastTimeouts = t;
+			responses += dr;
+			sampledResponses = dr;
+			sampledTimeouts = dt;
+			qps = dr / secs;
+			timeoutRate = dr + dt == 0 ? 0 : (double)dt / (dr + dt);
+
+			p50 = latencies.percentile(0.5);
+			p99 = latencies.percentile(0.99);
+			p999 = latencies.percentile(0.999);
+		}
+
+		@Override
+		public String getNameserver() {
+			return name;
+		}
+
+		@Override
+		public double getQps() {
+			return qps;
+		}
+
+		@Override
+		public double getTimeoutRate() {
+			return timeoutRate;
+		}
+
+		/**
+		 * @return the responses as of the last sample
+		 */
+		@Override
+		public long getResponses() {
+			return responses;
+		}
+
+		@Override
+		public long getTimeouts() {
+			return timeouts.get();
+		}
+
+		@Override
+		public double getP50Micros() {
+			return p50 / 1000.0;
+		}
+
+		@Override
+		public double getP99Micros() {
+			return p99 / 1000.0;
+		}
+
+		@Override
+		public double getP999Micros() {
+			return p999 / 1000.0;
+		}
+	}
+
+	final Nameserver[] nameservers;
+	final BoundedBuffer<DnsRequest> inQueue;
+	final BoundedBuffer<DnsResponse> outQueue;
+	final List<ResolverThread> threads;
+	final long intervalMs;
+
+	final Timer timer = new Timer("collection-metrics", true);
+	final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	final List<ObjectName> registered = new ArrayList<ObjectName>();
+	HttpServer http = null;
+
+	long lastSampleMs = System.currentTimeMillis();
+
+	public CollectionMetrics(String[] nameservers, BoundedBuffer<DnsRequest> inQueue, BoundedBuffer<DnsResponse> outQueue,
+			List<ResolverThread> threads, long intervalMs)
+	{
+		int numStripes = Math.max(1, Runtime.getRuntime().availableProcessors());
+		this.nameservers = new Nameserver[nameservers.length];
+		for(int i = 0; i < nameservers.length; ++i)
+			this.nameservers[i] = new Nameserver(nameservers[i], numStripes);
+		this.inQueue = inQueue;
+		this.outQueue = outQueue;
+		this.threads = threads;
+		this.intervalMs = intervalMs;
+	}
+
+	/**
+	 * @return metrics registered for the task and sampling, or null if dns.collection.metrics is off
+	 */
+	public static CollectionMetrics create(Configuration conf, String task, String[] nameservers,
+			BoundedBuffer<DnsRequest> inQueue, BoundedBuffer<DnsResponse> outQueue, List<ResolverThread> threads) throws IOException
+	{
+		if(!conf.getBoolean("dns.collection.metrics", true))
+			return null;
+
+		CollectionMetrics metrics = new CollectionMetrics(nameservers, inQueue, outQueue, threads,
+				conf.getInt("dns.collection.metrics.interval.secs", 5) * 1000L);
+		metrics.register(task);
+		int port = conf.getInt("dns.collection.metrics.http.port", -1);
+		if(port >= 0)
+		{
+			metrics.startHttp(conf.get("dns.collection.metrics.http.host", "127.0.0.1"), port,
+					conf.getInt("dns.collection.metrics.http.port.tries", 16));
+		}
+		metrics.start();
+		return metrics;
+	}
+
+	void register(String task) throws IOException
+	{
+		try {
+			register(new ObjectName(DOMAIN+":type=Collection,task="+task), new StandardMBean(this, CollectionMetricsMBean.class));
+			for(Nameserver ns : nameservers)
+			{
+				register(new ObjectName(DOMAIN+":type=Nameserver,task="+task+",nameserver="+ObjectName.quote(ns.name)), 
+						new StandardMBean(ns, NameserverMetricsMBean.class));
+			}
+		} catch (JMException e) {
+			throw new IOException("Failed to register the metrics MBeans: "+e.getMessage());
+		}
+	}
+
+	private void register(ObjectName name, Object mbean) throws JMException
+	{
+		server.registerMBean(mbean, name);
+		registered.add(name);
+	}
+
+	/**
+	 * Serves the metrics as JSON. Tasks on the same node share the configured port, so the ones
+	 * after the first take the next free port after it, or any free one. Failing to serve is
+	 * logged, the task goes on without it.
+	 *
+	 * @param port the first port to try, 0 picks a free one
+	 */
+	void startHttp(String host, int port, int tries)
+	{
+		for(int i = 0; i < Math.max(1, tries) && http == null; ++i)
+		{
+			try {
+				http = HttpServer.create(new InetSocketAddress(host, port == 0 ? 0 : port + i), 0);
+			} catch (BindException e) {
+				if(port == 0)
+					break;
+			} catch (IOException e) {
+				LOG.warn("Not serving collection metrics on "+host+": "+e.getMessage());
+				return;
+			}
+		}
+		if(http == null)
+		{
+			try {
+				http = HttpServer.create(new InetSocketAddress(host, 0), 0);
+				LOG.warn("Ports "+port+" to "+(port + tries - 1)+" are taken, serving collection metrics on a free port");
+			} catch (IOException e) {
+				LOG.warn("Not serving collection metrics on "+host+": "+e.getMessage());
+				return;
+			}
+		}
+
+		http.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = new ObjectMapper().writeValueAsBytes(snapshot());
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+			}
+		});
+		http.start();
+		LOG.info("Serving collection metrics at http://"+host+":"+http.getAddress().getPort()+"/metrics");
+	}
+
+	void start()
+	{
+		timer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				sample();
+			}
+		}, intervalMs, intervalMs);
+	}
+
+	synchronized void sample()
+	{
+		long now = System.currentTimeMillis();
+		double secs = Math.max(1, now - lastSampleMs) / 1000.0;
+		lastSampleMs = now;
+		for(Nameserver ns : nameservers)
+			ns.sample(secs);
+	}
+
+	public void onResponse(int nameserver, long nanos)
+	{
+		nameservers[nameserver].recorder.record(nanos);
+	}
+
+	public void onTimeout(int nameserver)
+	{
+		nameservers[nameserver].timeouts.incrementAndGet();
+	}
+
+	/**
+	 * @return everything the MBeans expose, for the HTTP endpoint
+	 */
+	public Map<String, Object> snapshot()
+	{
+		Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+		snapshot.put("inQueueSize", getInQueueSize());
+		snapshot.put("outQueueSize", getOutQueueSize());
+		snapshot.put("inFlight", getInFlight());
+		snapshot.put("qps", getQps());
+		snapshot.put("timeoutRate", getTimeoutRate());
+		snapshot.put("responses", getResponses());
+		snapshot.put("timeouts", getTimeouts());
+
+		List<Map<String, Object>> perNameserver = new ArrayList<Map<String, Object>>();
+		for(Nameserver ns : nameservers)
+		{
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			m.put("nameserver", ns.getNameserver());
+			m.put("qps", ns.getQps());
+			m.put("timeoutRate", ns.getTimeoutRate());
+			m.put("responses", ns.getResponses());
+			m.put("timeouts", ns.getTimeouts());
+			m.put("p50Micros", ns.getP50Micros());
+			m.put("p99Micros", ns.getP99Micros());
+			m.put("p999Micros", ns.getP999Micros());
+			perNameserver.add(m);
+		}
+		snapshot.put("nameservers", perNameserver);
+		return snapshot;
+	}
+
+	public void close()
+	{
+		timer.cancel();
+		if(http != null)
+			http.stop(0);
+		for(ObjectName name : registered)
+		{
+			try {
+				server.unregisterMBean(name);
+			} catch (JMException e) {
+				LOG.warn("Failed to unregister "+name+": "+e.getMessage());
+			}
+		}
+		registered.clear();
+	}
+
+	@Override
+	public int getInQueueSize() {
+		return inQueue.size();
+	}
+
+	@Override
+	public int getOutQueueSize() {
+		return outQueue.size();
+	}
+
+	@Override
+	public int getInFlight() {
+		int inFlight = 0;
+		for(ResolverThread thread : threads)
+			inFlight += thread.getInFlight();
+		return inFlight;
+	}
+
+	@Override
+	public double getQps() {
+		double qps = 0;
+		for(Nameserver ns : nameservers)
+			qps += ns.qps;
+		return qps;
+	}
+
+	@Override
+	public double getTimeoutRate() {
+		long responses = 0;
+		long timeouts = 0;
+		for(Nameserver ns : nameservers)
+		{
+			responses += ns.sampledResponses;
+			timeouts += ns.sampledTimeouts;
+		}
+		return responses + timeouts == 0 ? 0 : (double)timeouts / (responses + timeouts);
+	}
+
+	@Override
+	public long getResponses() {
+		long responses = 0;
+		for(Nameserver ns : nameservers)
+			responses += ns.getResponses();
+		return responses;
+	}
+
+	@Override
+	public long getTimeouts() {
+		long timeouts = 0;
+		for(Nameserver ns : nameservers)
+			timeouts += ns.getTimeouts();
+		return timeouts;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+
+/**
+ * Limits how many requests are in flight at once, shared by all resolver threads in a mapper.
+ *
+ * The limit follows a gradient: response times are averaged over a window of samples and
+ * compared to a baseline, the lowest window average seen, which drifts up slowly so it can
+ * follow a nameserver that really got slower. While response times stay within the tolerance
+ * of the baseline, the limit grows by about its square root per window. When they inflate,
+ * i.e. queries queue up somewhere, it shrinks in proportion, so it settles near the knee of
+ * the throughput curve (Little's law: throughput = in flight / response time). Timeouts
+ * shrink it straight away.
+ */
+public class ConcurrencyLimiter {
+
+	private static final Logger LOG = Logger.getLogger(ConcurrencyLimiter.class);
+
+	// how far the baseline moves towards a slower window average
+	private static final double BASELINE_DRIFT = 0.01;
+	private static final double MIN_GRADIENT = 0.5;
+	private static final double DROP_FACTOR = 0.9;
+
+	final int minLimit;
+	final int maxLimit;
+	final double tolerance;
+	final double smoothing;
+	final int window;
+
+	double limit;
+	int inFlight = 0;
+	int maxInFlight = 0;
+
+	double baselineRttMs = -1;
+	double windowRttSum = 0;
+	int windowCount = 0;
+	boolean windowDropped = false;
+
+	long samples = 0;
+	long drops = 0;
+
+	public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double tolerance, double smoothing, int window)
+	{
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.tolerance = tolerance;
+		this.smoothing = smoothing;
+		this.window = window;
+		this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+	}
+
+	/**
+	 * @param maxLimit the most requests the resolvers can have in flight anyway
+	 * @return a limiter configured from dns.collection.concurrency.*, or null unless it is turned on
+	 */
+	public static ConcurrencyLimiter create(Configuration conf, int maxLimit)
+	{
+		if(!conf.getBoolean("dns.collection.concurrency.adaptive", false))
+			return null;
+
+		return new ConcurrencyLimiter(
+				conf.getInt("dns.collection.concurrency.initial", 20),
+				conf.getInt("dns.collection.concurrency.min", 4),
+				Math.min(maxLimit, conf.getInt("dns.collection.concurrency.max", maxLimit)),
+				conf.getFloat("dns.collection.concurrency.tolerance", 1.5f),
+				conf.getFloat("dns.collection.concurrency.smoothing", 0.2f),
+				conf.getInt("dns.collection.concurrency.window", 100));
+	}
+
+	/**
+	 * Waits until another request may be sent, every acquire needs a {@link #release()}.
+	 */
+	public synchronized void acquire() throws InterruptedException
+	{
+		while(inFlight >= (int)limit)
+			wait();
+		take();
+	}
+
+	/**
+	 * @return true if another request may be sent now, which then needs a {@link #release()}
+	 */
+	public synchronized boolean tryAcquire()
+	{
+		if(inFlight >= (int)limit)
+			return false;
+		take();
+		return true;
+	}
+
+	private void take()
+	{
+		inFlight++;
+		if(inFlight > maxInFlight)
+			maxInFlight = inFlight;
+	}
+
+	public synchronized void release()
+	{
+		inFlight--;
+		notifyAll();
+	}
+
+	/**
+	 * Called with the response time of every answered query, from {@link System#nanoTime()} so
+	 * that nameservers answering within a millisecond are told apart.
+	 */
+	public synchronized void onSample(long rttNanos)
+	{
+		samples++;
+		windowRttSum += Math.max(1, rttNanos) / 1000000.0;
+		windowCount++;
+		if(windowCount >= window)
+			update();
+	}
+
+	/**
+	 * Called when a query timed out.
+	 */
+	public synchronized void onDrop()
+	{
+		drops++;
+		if(windowDropped)
+			return;
+
+		// at most once per window, a burst of timeouts is one signal
+		windowDropped = true;
+		setLimit(limit * DROP_FACTOR);
+	}
+
+	private void update()
+	{
+		double shortRttMs = windowRttSum / windowCount;
+		int peak = maxInFlight;
+		windowRttSum = 0;
+		windowCount = 0;
+		windowDropped = false;
+		maxInFlight = inFlight;
+
+		if(baselineRttMs < 0 || shortRttMs < baselineRttMs)
+			baselineRttMs = shortRttMs;
+		else
+			baselineRttMs += (shortRttMs - baselineRttMs) * BASELINE_DRIFT;
+
+		// not using the limit, so it tells nothing about whether more would help
+		if(peak < limit / 2)
+			return;
+
+		double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, tolerance * baselineRttMs / shortRttMs));
+		double target = limit * gradient + Math.sqrt(limit);
+		setLimit(limit * (1 - smoothing) + target * smoothing);
+	}
+
+	private void setLimit(double newLimit)
+	{
+		double old = limit;
+		limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+		if(LOG.isDebugEnabled() && (int)old != (int)limit)
+			LOG.debug("Concurrency limit "+(int)old+" -> "+(int)limit+", baseline RTT "+baselineRttMs+" ms");
+		if(limit > old)
+			notifyAll();
+	}
+
+	public synchronized int getLimit() {
+		return (int)limit;
+	}
+
+	public synchronized double getBaselineRttMs() {
+		return baselineRttMs;
+	}
+
+	public synchronized long getSamples() {
+		return samples;
+	}
+
+	public synchronized long getDrops() {
+		return drops;
+	}
+}
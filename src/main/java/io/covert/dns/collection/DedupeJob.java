@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import io.covert.util.BloomFilter;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * A pre-pass over the collection input that finds requests made by more than one split. Each
+ * is left to the split that sorts first by {@link DuplicateFilter#getSplitKey(InputSplit)}, the
+ * others are put in a Bloom filter that {@link CollectionJob} ships to its mappers with
+ * -D dns.collection.dedupe.filter=outDir.
+ *
+ * Splits are told apart by where they start, so this has to run on the same input with the
+ * same request types, subdomains, wordlist and split settings as the collection job, and not
+ * with -D dns.collection.zonesort=true, which collects from a sorted copy of the input.
+ */
+public class DedupeJob extends Configured implements Tool  {
+
+	public static final String COUNTER_GROUP = DedupeJob.class.getSimpleName();
+
+	private static void usage(String msg)
+	{
+		System.err.println("Usage: hadoop jar JARFILE.jar "+DedupeJob.class.getName()+" <requestClass> <requestTypes> <inDir> <outDir>");
+		System.err.println("    requestClass - request class, e.g. IN, CH, etc");
+		System.err.println("    requestTypes - resource record types (comma delim), e.g. A,MX,NS etc");
+		System.err.println("    inDir  - HDFS input dir, as given to "+CollectionJob.class.getSimpleName());
+		System.err.println("    outDir - HDFS output dir for the filter");
+		System.exit(-1);
+	}
+
+	public static class DedupeMapper extends Mapper<Text, DnsRequest, Text, Text>
+	{
+		StringBuilder buffer = new StringBuilder();
+		Text outKey = new Text();
+		Text split = new Text();
+
+		@Override
+		protected void setup(Context context) throws IOException, InterruptedException {
+			split.set(DuplicateFilter.getSplitKey(context.getInputSplit()));
+		}
+
+		@Override
+		protected void map(Text line, DnsRequest request, Context context) throws IOException, InterruptedException {
+			buffer.setLength(0);
+			outKey.set(DuplicateFilter.appendKey(buffer, request).toString());
+			context.write(outKey, split);
+		}
+	}
+
+	/**
+	 * Every map task makes a request at most once per split it has.
+	 */
+	public static class DistinctSplitsCombiner extends Reducer<Text, Text, Text, Text>
+	{
+		Text split = new Text();
+
+		@Override
+		protected void reduce(Text key, Iterable<Text> splits, Context context) throws IOException, InterruptedException {
+			TreeSet<String> distinct = new TreeSet<String>();
+			for(Text s : splits)
+				distinct.add(s.toString());
+			for(String s : distinct)
+			{
+				split.set(s);
+				context.write(key, split);
+			}
+		}
+	}
+
+	public static class DedupeReducer extends Reducer<Text, Text, Text, Text>
+	{
+		BloomFilter filter;
+		StringBuilder buffer = new StringBuilder();
+		byte[] bytes = new byte[256];
+
+		@Override
+		protected void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+			// every part is the same size, so the collection job can combine them
+			filter = BloomFilter.create(conf.getLong("dns.collection.dedupe.global.expected", 10000000L),
+					conf.getFloat("dns.collection.dedupe.fpp", 0.001f));
+		}
+
+		@Override
+		protected void reduce(Text key, Iterable<Text> splits, Context context) throws IOException, InterruptedException {
+
+			TreeSet<String> distinct = new TreeSet<String>();
+			for(Text s : splits)
+				distinct.add(s.toString());
+			if(distinct.size() < 2)
+				return;
+
+			// the first split keeps it
+			context.getCounter(COUNTER_GROUP, "DUPLICATED_REQUESTS").increment(1);
+			String request = key.toString();
+			for(String split : distinct.tailSet(distinct.first(), false))
+			{
+				buffer.setLength(0);
+				buffer.append(split).append('\t').append(request);
+				if(bytes.length < buffer.length())
+					bytes = new byte[buffer.length() * 2];
+				filter.add(bytes, DuplicateFilter.encode(buffer, bytes));
+				context.getCounter(COUNTER_GROUP, "SKIPPED_REQUESTS").increment(1);
+			}
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			Path part = new Path(FileOutputFormat.getWorkOutputPath(context),
+					DuplicateFilter.FILTER_PREFIX+context.getTaskAttemptID().getTaskID().getId());
+			FileSystem fs = part.getFileSystem(context.getConfiguration());
+			DataOutputStream out = fs.create(part);
+			try {
+				filter.write(out);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+
+		if(args.length != 4)
+		{
+			usage("");
+		}
+
+		String dclass = args[0];
+		String types = args[1];
+		String inDir = args[2];
+		String outDir = args[3];
+
+		Configuration conf = getConf();
+
+		Job job = new Job(conf);
+		job.setJobName(DedupeJob.class.getSimpleName()+": types="+types+", dclass="+dclass+
+					   " inDir="+inDir+", outDir="+outDir);
+		job.setJarByClass(getClass());
+
+		job.setMapperClass(DedupeMapper.class);
+		job.setCombinerClass(DistinctSplitsCombiner.class);
+		job.setReducerClass(DedupeReducer.class);
+		job.setNumReduceTasks(new JobClient(new JobConf(conf)).getClusterStatus().getTaskTrackers());
+
+		job.setMapOutputKeyClass(Text.class);
+		job.setMapOutputValueClass(Text.class);
+		job.setOutputKeyClass(Text.class);
+		job.setOutputValueClass(Text.class);
+
+		job.setInputFormatClass(DnsRequestInputFormat.class);
+		DnsRequestInputFormat.setInputPaths(job, new Path(inDir));
+		DnsRequestInputFormat.configure(job, dclass.toUpperCase(), Arrays.asList(types.split(",")), 
+				Arrays.asList(conf.get("dns.requests.subdomains", "").split(",")));
+		if(conf.get("dns.requests.wordlist") != null)
+		{
+			DnsRequestInputFormat.setWordlist(job, new Path(conf.get("dns.requests.wordlist")),
+					conf.getInt("dns.requests.wordlist.slices", 1));
+		}
+
+		// the reducers only write the filter parts
+		job.setOutputFormatClass(TextOutputFormat.class);
+		TextOutputFormat.setOutputPath(job, new Path(outDir));
+		job.submit();
+
+		return job.waitForCompletion(true)?0:1;
+	}
+
+	public static void main(String[] args) throws Exception {
+		ToolRunner.run(new DedupeJob(), args);
+	}
+}
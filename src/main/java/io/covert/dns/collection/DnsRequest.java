@@ -26,39 +26,79 @@ import org.xbill.DNS.Type;
 
 public class DnsRequest implements WritableComparable<DnsRequest> {
 
-	String name = "";
+	// the name is kept as subdomain and domain labels, without trailing dots, so requests 
+	// for many subdomains of a domain can share strings. The full name is only built on demand
+	String subdomain = "";
+	String domain = "";
+	String name = null;
 	int requestType = 0;
 	int dclass = 0;
 	
+	// deferred retries so far, only used while collecting and never serialized
+	int retries = 0;
+	
+	// set on apex requests other requests wait on, see ApexScheduler
+	ApexScheduler.Group group = null;
+	
+	// set on subdomain requests when wildcard detection is on, see WildcardDetector
+	WildcardDetector.Zone wildcard = null;
+	
 	public DnsRequest(){}
 	
 	public DnsRequest(String name, int requestType, int dclass) {
+		this("", name, requestType, dclass);
+	}
+	
+	public DnsRequest(String subdomain, String domain, int requestType, int dclass) {
 		super();
-		this.name = name;
+		this.subdomain = stripDot(subdomain);
+		this.domain = stripDot(domain);
 		this.requestType = requestType;
 		this.dclass = dclass;
 	}
 
 	@Override
 	public void readFields(DataInput in) throws IOException {
-		name = in.readUTF();
+		setName(in.readUTF());
 		requestType = in.readInt();
 		dclass = in.readInt();
 	}
 
 	@Override
 	public void write(DataOutput out) throws IOException {
-		out.writeUTF(name);
+		out.writeUTF(getName());
 		out.writeInt(requestType);
 		out.writeInt(dclass);
 	}
 
+	/**
+	 * @return the fully qualified name, ending with a dot
+	 */
 	protected String getName() {
+		if(name == null)
+			name = appendName(new StringBuilder()).toString();
 		return name;
 	}
 
 	protected void setName(String name) {
-		this.name = name;
+		this.subdomain = "";
+		this.domain = stripDot(name);
+		this.name = null;
+	}
+	
+	/**
+	 * Appends the fully qualified name without building it as a string first.
+	 */
+	public StringBuilder appendName(StringBuilder buffer) {
+		if(subdomain.length() > 0)
+			buffer.append(subdomain).append('.');
+		if(domain.length() > 0)
+			buffer.append(domain);
+		return buffer.append('.');
+	}
+	
+	private static String stripDot(String labels) {
+		return labels.endsWith(".") ? labels.substring(0, labels.length() - 1) : labels;
 	}
 
 	protected int getRequestType() {
@@ -80,7 +120,7 @@ public class DnsRequest implements WritableComparable<DnsRequest> {
 	@Override
 	public int compareTo(DnsRequest o) {
 		
-		int ret = name.compareTo(o.name);
+		int ret = getName().compareTo(o.getName());
 		if(ret == 0)
 		{
 			if(requestType > o.requestType)
@@ -106,7 +146,7 @@ public class DnsRequest implements WritableComparable<DnsRequest> {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + dclass;
-		result = prime * result + ((name == null) ? 0 : name.hashCode());
+		result = prime * result + getName().hashCode();
 		result = prime * result + requestType;
 		return result;
 	}
@@ -122,10 +162,7 @@ public class DnsRequest implements WritableComparable<DnsRequest> {
 		DnsRequest other = (DnsRequest) obj;
 		if (dclass != other.dclass)
 			return false;
-		if (name == null) {
-			if (other.name != null)
-				return false;
-		} else if (!name.equals(other.name))
+		if (!getName().equals(other.getName()))
 			return false;
 		if (requestType != other.requestType)
 			return false;
@@ -135,6 +172,6 @@ public class DnsRequest implements WritableComparable<DnsRequest> {
 	@Override
 	public String toString() {
 		
-		return "[name="+name+",dclass="+DClass.string(dclass)+",type="+Type.string(requestType)+"]";
+		return "[name="+getName()+",dclass="+DClass.string(dclass)+",type="+Type.string(requestType)+"]";
 	}
 }
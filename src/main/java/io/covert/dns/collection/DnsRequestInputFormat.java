@@ -19,23 +19,36 @@ package io.covert.dns.collection;
 import io.covert.util.Utils;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.LineReader;
+import org.apache.log4j.Logger;
 import org.xbill.DNS.DClass;
 import org.xbill.DNS.Type;
 
 public class DnsRequestInputFormat extends FileInputFormat<Text, DnsRequest> {
 	
+	private static final Logger LOG = Logger.getLogger(DnsRequestInputFormat.class);
+	
 	@Override
 	public RecordReader<Text, DnsRequest> createRecordReader(InputSplit split, TaskAttemptContext context)
 			throws IOException, InterruptedException {
@@ -52,6 +65,156 @@ public class DnsRequestInputFormat extends FileInputFormat<Text, DnsRequest> {
 		return new DnsRequestRecordReader(subdomains, types, dclass);
 	}
 	
+	/**
+	 * Without dns.requests.per.split these are the usual byte ranges of the input files. With it, 
+	 * the input is read through once and cut into splits of about that many requests, counting 
+	 * every domain line as types x subdomains requests. Small files are combined into one split.
+	 * 
+	 * With a wordlist, each split is then crossed with dns.requests.wordlist.slices ranges of it.
+	 */
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+		
+		Configuration conf = job.getConfiguration();
+		long requestsPerSplit = conf.getLong("dns.requests.per.split", 0);
+		String wordlist = conf.get("dns.requests.wordlist");
+		if(requestsPerSplit <= 0 && wordlist == null)
+			return super.getSplits(job);
+		
+		long wordlistLength = 0;
+		int slices = 1;
+		long words = 0;
+		if(wordlist != null)
+		{
+			Path path = new Path(wordlist);
+			wordlistLength = path.getFileSystem(conf).getFileStatus(path).getLen();
+			slices = (int)Math.max(1, Math.min(wordlistLength, conf.getInt("dns.requests.wordlist.slices", 1)));
+			if(requestsPerSplit > 0)
+				words = countLines(path, conf);
+		}
+		
+		List<DnsRequestSplit> splits;
+		if(requestsPerSplit > 0)
+		{
+			int types = conf.get("dns.request.types", "A").split(",").length;
+			int subdomains = conf.get("dns.requests.subdomains", "").split(",").length;
+			// each mapper only gets one slice of the wordlist
+			long requestsPerLine = types * (subdomains + (words + slices - 1) / slices);
+			splits = planSplits(job, requestsPerSplit, requestsPerLine);
+		}
+		else
+		{
+			splits = new ArrayList<DnsRequestSplit>();
+			for(InputSplit split : super.getSplits(job))
+			{
+				FileSplit fileSplit = (FileSplit)split;
+				splits.add(new DnsRequestSplit(Collections.singletonList(fileSplit), fileSplit.getLocations()));
+			}
+		}
+		
+		List<InputSplit> result = new ArrayList<InputSplit>(splits.size() * slices);
+		for(DnsRequestSplit split : splits)
+		{
+			if(wordlist == null)
+			{
+				result.add(split);
+				continue;
+			}
+			
+			// every part of the input is enumerated against each slice of the wordlist
+			for(int i = 0; i < slices; ++i)
+				result.add(split.slice(wordlistLength * i / slices, wordlistLength * (i + 1) / slices));
+		}
+		LOG.info("Created "+result.size()+" splits");
+		return result;
+	}
+	
+	private List<DnsRequestSplit> planSplits(JobContext job, long requestsPerSplit, long requestsPerLine) throws IOException
+	{
+		Configuration conf = job.getConfiguration();
+		List<DnsRequestSplit> splits = new ArrayList<DnsRequestSplit>();
+		List<FileSplit> chunks = new ArrayList<FileSplit>();
+		String[] hosts = null;
+		long requests = 0;
+		Text line = new Text();
+		
+		for(FileStatus file : listStatus(job))
+		{
+			Path path = file.getPath();
+			FileSystem fs = path.getFileSystem(conf);
+			long chunkStart = 0;
+			long pos = 0;
+			if(hosts == null)
+				hosts = getHosts(fs, file, 0);
+			
+			LineReader reader = new LineReader(fs.open(path), conf);
+			try {
+				int read;
+				while((read = reader.readLine(line)) > 0)
+				{
+					pos += read;
+					requests += isExplicit(line) ? 1 : requestsPerLine;
+					if(requests >= requestsPerSplit)
+					{
+						// cut after this line, the next split starts with the next one
+						chunks.add(new FileSplit(path, chunkStart, pos - chunkStart, null));
+						splits.add(new DnsRequestSplit(chunks, hosts));
+						chunks = new ArrayList<FileSplit>();
+						requests = 0;
+						chunkStart = pos;
+						hosts = pos < file.getLen() ? getHosts(fs, file, pos) : null;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			
+			// the rest of the file shares a split with the start of the next one
+			if(pos > chunkStart)
+				chunks.add(new FileSplit(path, chunkStart, pos - chunkStart, null));
+		}
+		
+		if(!chunks.isEmpty())
+			splits.add(new DnsRequestSplit(chunks, hosts));
+		return splits;
+	}
+	
+	private static boolean isExplicit(Text line)
+	{
+		// "name TAB type TAB class", see DnsRequestRecordReader
+		int tabs = 0;
+		byte[] bytes = line.getBytes();
+		for(int i = 0; i < line.getLength(); ++i)
+		{
+			if(bytes[i] == '\t')
+				tabs++;
+		}
+		return tabs == 2;
+	}
+	
+	private static String[] getHosts(FileSystem fs, FileStatus file, long offset) throws IOException
+	{
+		BlockLocation[] blocks = fs.getFileBlockLocations(file, offset, 1);
+		return blocks == null || blocks.length == 0 ? null : blocks[0].getHosts();
+	}
+	
+	private static long countLines(Path path, Configuration conf) throws IOException
+	{
+		long lines = 0;
+		Text line = new Text();
+		LineReader reader = new LineReader(path.getFileSystem(conf).open(path), conf);
+		try {
+			while(reader.readLine(line) > 0)
+			{
+				if(line.getLength() > 0)
+					lines++;
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+	
 	public static void configure(Job job, String dclass, Collection<String> recordTypes, Collection<String> subDomains)
 	{
 		Configuration conf = job.getConfiguration();
@@ -59,4 +222,19 @@ public class DnsRequestInputFormat extends FileInputFormat<Text, DnsRequest> {
 		conf.set("dns.request.types", Utils.join(",", recordTypes));
 		conf.set("dns.requests.subdomains", Utils.join(",", subDomains));
 	}
+	
+	/**
+	 * Adds the subdomains in a wordlist file, one per line, to every domain. The file is shipped 
+	 * to the tasks through the distributed cache, and each input split is enumerated against 
+	 * the given number of slices of it by separate mappers.
+	 */
+	public static void setWordlist(Job job, Path wordlist, int slices) throws IOException
+	{
+		Configuration conf = job.getConfiguration();
+		FileSystem fs = wordlist.getFileSystem(conf);
+		Path qualified = fs.makeQualified(wordlist);
+		conf.set("dns.requests.wordlist", qualified.toString());
+		conf.setInt("dns.requests.wordlist.slices", slices);
+		DistributedCache.addCacheFile(qualified.toUri(), conf);
+	}
 }
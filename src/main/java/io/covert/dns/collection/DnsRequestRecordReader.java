@@ -16,9 +16,9 @@
  */
 package io.covert.dns.collection;
 
-import io.covert.util.Pair;
-
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -26,106 +26,205 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Type;
 
+/**
+ * Expands every domain line into its type x subdomain requests one at a time, so a line takes
+ * the same memory however long the wordlist is.
+ */
 public class DnsRequestRecordReader extends RecordReader<Text, DnsRequest> {
 
-	Pair<Text, DnsRequest> pair = null;
-	LineRecordReader lineReader = new LineRecordReader();
+	Text key = null;
+	DnsRequest value = null;
+	
+	// the domain lines are read from each chunk of the split in turn
+	TaskAttemptContext context;
+	FileSplit[] chunks;
+	int chunk = 0;
+	LineRecordReader lineReader = null;
 	
-	Iterable<String> subdomains;
+	List<String> subdomains;
 	Iterable<Integer> types;
 	int dclass;
 	
-	List<Pair<Text, DnsRequest>> outstandingRequests = new LinkedList<Pair<Text,DnsRequest>>();
+	// the words of the wordlist slice this split covers, if there is a wordlist
+	Iterable<String> words = null;
+	boolean firstSlice = true;
+	
+	// where the expansion of the current line is at
+	Text line;
+	String domain;
+	Iterator<Integer> typeIt = null;
+	int type;
+	Iterator<String> subdomainIt;
+	Iterator<String> wordIt;
 	
 	public DnsRequestRecordReader(Iterable<String> subdomains, Iterable<Integer> types, int dclass)
 	{
-		this.subdomains = subdomains;
+		List<String> stripped = new LinkedList<String>();
+		for(String subDomain : subdomains)
+		{
+			// the apex goes first, see ApexScheduler
+			subDomain = stripDot(subDomain);
+			if(subDomain.length() == 0)
+				stripped.add(0, subDomain);
+			else
+				stripped.add(subDomain);
+		}
+		this.subdomains = stripped;
 		this.types = types;
 		this.dclass = dclass;
 	}
 	
+	private static String stripDot(String labels) {
+		return labels.endsWith(".") ? labels.substring(0, labels.length() - 1) : labels;
+	}
+	
 	@Override
 	public void close() throws IOException {
-		lineReader.close();
+		if(lineReader != null)
+			lineReader.close();
 	}
 
 	@Override
 	public Text getCurrentKey() throws IOException, InterruptedException {
-		
-		if(pair == null)
-			return null;
-		
-		return pair.getKey();
+		return key;
 	}
 
 	@Override
 	public DnsRequest getCurrentValue() throws IOException, InterruptedException {
-		if(pair == null)
-			return null;
-		
-		return pair.getValue();
+		return value;
 	}
 
 	@Override
 	public float getProgress() throws IOException, InterruptedException {
-		return lineReader.getProgress();
+		if(lineReader == null)
+			return chunk == 0 ? 0.0f : 1.0f;
+		return (chunk - 1 + lineReader.getProgress()) / chunks.length;
 	}
 
 	@Override
 	public void initialize(InputSplit split, TaskAttemptContext context) throws IOException,
 			InterruptedException {
-		lineReader.initialize(split, context);
+		
+		this.context = context;
+		if(split instanceof DnsRequestSplit)
+		{
+			DnsRequestSplit requestSplit = (DnsRequestSplit)split;
+			chunks = requestSplit.getChunks();
+			if(requestSplit.hasWords())
+			{
+				Wordlist wordlist = Wordlist.open(context.getConfiguration());
+				words = wordlist.slice(requestSplit.getWordStart(), requestSplit.getWordEnd());
+				
+				// the other subdomains and explicit requests are only looked up once, with the first slice
+				if(requestSplit.getWordStart() > 0)
+				{
+					firstSlice = false;
+					subdomains = Collections.emptyList();
+				}
+			}
+		}
+		else
+		{
+			chunks = new FileSplit[]{(FileSplit)split};
+		}
+	}
+	
+	private boolean nextLine() throws IOException, InterruptedException
+	{
+		while(true)
+		{
+			if(lineReader != null)
+			{
+				if(lineReader.nextKeyValue())
+					return true;
+				lineReader.close();
+				lineReader = null;
+			}
+			if(chunk == chunks.length)
+				return false;
+			
+			lineReader = new LineRecordReader();
+			lineReader.initialize(chunks[chunk++], context);
+		}
 	}
 
 	@Override
 	public boolean nextKeyValue() throws IOException, InterruptedException {
 		
-		if(outstandingRequests.size() > 0)
-		{
-			pair = outstandingRequests.remove(0);
-			return true;
-		}
-		
-		if(lineReader.nextKeyValue())
+		while(true)
 		{
-			Text line = lineReader.getCurrentValue();
-			for(Integer type : types)
+			if(typeIt != null)
 			{
-				for(String subDomain: subdomains)
+				String subDomain = nextSubdomain();
+				if(subDomain != null)
+				{
+					key = line;
+					value = new DnsRequest(subDomain, domain, type, dclass);
+					return true;
+				}
+				
+				if(typeIt.hasNext())
 				{
-					String name = subDomain;
-					if(name.equals(""))
-					{
-						// allow for lookups on just the domain without any subdomains
-						name = line.toString().trim();
-					}
-					else if(name.endsWith("."))
-					{
-						name += line.toString().trim();
-					}
-					else
-					{
-						name += "."+line.toString().trim();
-					}
-					
-					if(!name.endsWith("."))
-					{
-						name += ".";
-					}
-					
-					outstandingRequests.add(new Pair<Text, DnsRequest>(line, new DnsRequest(name, type, dclass)));
+					type = typeIt.next();
+					restartSubdomains();
+					continue;
 				}
+				typeIt = null;
+			}
+			
+			if(!nextLine())
+			{
+				key = null;
+				value = null;
+				return false;
 			}
 			
-			if(outstandingRequests.size() > 0)
+			line = lineReader.getCurrentValue();
+			String text = line.toString();
+			String[] fields = text.indexOf('\t') < 0 ? null : text.split("\t");
+			if(fields != null && fields.length == 3)
 			{
-				pair = outstandingRequests.remove(0);
+				// an explicit "name TAB type TAB class" request, e.g. one that failed in an earlier run
+				if(!firstSlice)
+					continue;
+				key = line;
+				value = new DnsRequest(fields[0], Type.value(fields[1]), DClass.value(fields[2]));
 				return true;
 			}
+			
+			// every request for this line shares the domain string, an empty subdomain 
+			// is a lookup on just the domain
+			domain = stripDot(text.trim());
+			typeIt = types.iterator();
+			if(typeIt.hasNext())
+			{
+				type = typeIt.next();
+				restartSubdomains();
+			}
+			else
+			{
+				typeIt = null;
+			}
 		}
-		
-		return false;
+	}
+	
+	private void restartSubdomains()
+	{
+		subdomainIt = subdomains.iterator();
+		wordIt = words == null ? null : words.iterator();
+	}
+	
+	private String nextSubdomain()
+	{
+		if(subdomainIt.hasNext())
+			return subdomainIt.next();
+		if(wordIt != null && wordIt.hasNext())
+			return wordIt.next();
+		return null;
 	}
 }
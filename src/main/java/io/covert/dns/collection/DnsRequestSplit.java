@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Line aligned chunks of one or more domain files, optionally crossed with a byte range of
+ * the wordlist so the subdomains of the same domains can be enumerated by many mappers at once.
+ */
+public class DnsRequestSplit extends InputSplit implements Writable {
+
+	FileSplit[] chunks;
+	String[] hosts;
+	long wordStart = 0;
+	long wordEnd = -1;
+
+	public DnsRequestSplit() {}
+
+	public DnsRequestSplit(List<FileSplit> chunks, String[] hosts)
+	{
+		this.chunks = chunks.toArray(new FileSplit[chunks.size()]);
+		this.hosts = hosts;
+	}
+
+	/**
+	 * @return a copy of this split for the words starting within the given range of the wordlist
+	 */
+	public DnsRequestSplit slice(long wordStart, long wordEnd)
+	{
+		DnsRequestSplit slice = new DnsRequestSplit();
+		slice.chunks = chunks;
+		slice.hosts = hosts;
+		slice.wordStart = wordStart;
+		slice.wordEnd = wordEnd;
+		return slice;
+	}
+
+	/**
+	 * @return the parts of the domain input, in order
+	 */
+	public FileSplit[] getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * @return true if this split covers a slice of the wordlist
+	 */
+	public boolean hasWords() {
+		return wordEnd >= 0;
+	}
+
+	public long getWordStart() {
+		return wordStart;
+	}
+
+	public long getWordEnd() {
+		return wordEnd;
+	}
+
+	@Override
+	public long getLength() throws IOException, InterruptedException {
+		long length = 0;
+		for(FileSplit chunk : chunks)
+			length += chunk.getLength();
+		return length;
+	}
+
+	@Override
+	public String[] getLocations() throws IOException, InterruptedException {
+		return hosts == null ? new String[0] : hosts;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(chunks.length);
+		for(FileSplit chunk : chunks)
+		{
+			Text.writeString(out, chunk.getPath().toString());
+			out.writeLong(chunk.getStart());
+			out.writeLong(chunk.getLength());
+		}
+		out.writeLong(wordStart);
+		out.writeLong(wordEnd);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		chunks = new FileSplit[in.readInt()];
+		for(int i = 0; i < chunks.length; ++i)
+			chunks[i] = new FileSplit(new Path(Text.readString(in)), in.readLong(), in.readLong(), null);
+		wordStart = in.readLong();
+		wordEnd = in.readLong();
+		hosts = null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buffer = new StringBuilder();
+		for(FileSplit chunk : chunks)
+		{
+			if(buffer.length() > 0)
+				buffer.append(',');
+			buffer.append(chunk);
+		}
+		if(hasWords())
+			buffer.append(" words ").append(wordStart).append('-').append(wordEnd);
+		return buffer.toString();
+	}
+}
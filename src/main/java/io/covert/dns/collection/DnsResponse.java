@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.io.IOException;
+
+import org.xbill.DNS.Message;
+
+/**
+ * A response exactly as it came off the wire, along with the request it answers.
+ * The few header fields collection needs are read straight from the bytes, a full
+ * {@link Message} is only parsed on request.
+ */
+public class DnsResponse {
+
+	/** DNS header length, a response shorter than this is garbage */
+	public static final int HEADER_LENGTH = 12;
+
+	final DnsRequest request;
+	final byte[] wire;
+	
+	// who answered and how fast, unknown for responses that were not queried for
+	int nameserver = -1;
+	long rttMicros = -1;
+	long queryTimeMs = 0;
+
+	public DnsResponse(DnsRequest request, byte[] wire)
+	{
+		this.request = request;
+		this.wire = wire;
+	}
+
+	/**
+	 * @param nameserver the index of the nameserver that answered
+	 * @param rttMicros the time from sending the query to receiving this
+	 * @param queryTimeMs when the query was sent
+	 */
+	public void setMetadata(int nameserver, long rttMicros, long queryTimeMs)
+	{
+		this.nameserver = nameserver;
+		this.rttMicros = rttMicros;
+		this.queryTimeMs = queryTimeMs;
+	}
+	
+	public int getNameserver() {
+		return nameserver;
+	}
+	
+	public long getRttMicros() {
+		return rttMicros;
+	}
+	
+	public long getQueryTimeMs() {
+		return queryTimeMs;
+	}
+	
+	public DnsRequest getRequest() {
+		return request;
+	}
+
+	public byte[] getWire() {
+		return wire;
+	}
+
+	public int getId() {
+		return getId(wire);
+	}
+
+	/**
+	 * @return the 4 bit header rcode, extended rcodes from an OPT record are not included
+	 */
+	public int getRcode() {
+		return getRcode(wire);
+	}
+
+	public boolean isTruncated() {
+		return isTruncated(wire);
+	}
+
+	public Message getMessage() throws IOException {
+		return new Message(wire);
+	}
+
+	public static int getId(byte[] wire) {
+		return ((wire[0] & 0xFF) << 8) | (wire[1] & 0xFF);
+	}
+
+	public static int getRcode(byte[] wire) {
+		return wire[3] & 0x0F;
+	}
+
+	public static boolean isTruncated(byte[] wire) {
+		return (wire[2] & 0x02) != 0;
+	}
+
+	@Override
+	public String toString() {
+		try {
+			return getMessage().toString();
+		} catch (IOException e) {
+			return "[request="+request+", unparseable response of "+wire.length+" bytes]";
+		}
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import io.covert.util.BloomFilter;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.log4j.Logger;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Type;
+
+/**
+ * Drops requests that were already made, keyed on name, class and type the way the output is.
+ *
+ * Within a task a Bloom filter remembers every request, so a false positive drops a request
+ * that was not a duplicate with the configured probability. Duplicates across splits are
+ * found by {@link DedupeJob} ahead of time: its filter holds the requests each split should
+ * leave to another one, keyed on where the split starts in the input. When resuming, {@link ResumeIndexJob} filters out the requests that
+ * earlier runs already collected. Its index is one filter per partition of the keys, each sized
+ * for the keys in it, and a request is only looked up in the filter of its partition.
+ */
+public class DuplicateFilter {
+
+	private static final Logger LOG = Logger.getLogger(DuplicateFilter.class);
+	public static final String FILTER_PREFIX = "dedupe-";
+	public static final String COLLECTED_PREFIX = "collected-";
+
+	final BloomFilter seen;
+	final BloomFilter elsewhere;
+	final BloomFilter[] collected;
+	final String split;
+	final StringBuilder buffer = new StringBuilder();
+	byte[] key = new byte[256];
+
+	long duplicates = 0;
+	long ownedElsewhere = 0;
+	long alreadyCollected = 0;
+	long fresh = 0;
+
+	/**
+	 * @param seen the requests of this task so far, or null to not look for duplicates within it
+	 * @param elsewhere the {@link DedupeJob} filter, or null
+	 * @param collected the {@link ResumeIndexJob} filters by partition, or null
+	 * @param split this task's split, see {@link #getSplitKey(InputSplit)}
+	 */
+	public DuplicateFilter(BloomFilter seen, BloomFilter elsewhere, BloomFilter[] collected, String split)
+	{
+		this.seen = seen;
+		this.elsewhere = elsewhere;
+		this.collected = collected;
+		this.split = split;
+	}
+
+	/**
+	 * @return a filter configured by dns.collection.dedupe.* and dns.collection.resume.index, or 
+	 * null unless dns.collection.dedupe is on or there is a resume index
+	 */
+	public static DuplicateFilter create(Configuration conf, String split) throws IOException
+	{
+		boolean dedupe = conf.getBoolean("dns.collection.dedupe", false);
+		String index = conf.get("dns.collection.resume.index");
+		if(!dedupe && index == null)
+			return null;
+
+		BloomFilter seen = null;
+		BloomFilter elsewhere = null;
+		BloomFilter[] collected = null;
+		if(dedupe)
+		{
+			seen = BloomFilter.create(conf.getLong("dns.collection.dedupe.expected", 10000000L),
+					conf.getFloat("dns.collection.dedupe.fpp", 0.001f));
+			LOG.info("Dedupe filter of "+seen.getNumBits()/8/1024/1024+" MB off heap");
+			if(conf.get("dns.collection.dedupe.filter") != null)
+				elsewhere = readFilters(conf, conf.get("dns.collection.dedupe.filter"), FILTER_PREFIX, false)[0];
+		}
+		if(index != null)
+		{
+			collected = readFilters(conf, index, COLLECTED_PREFIX, true);
+			long bits = 0;
+			for(BloomFilter part : collected)
+				bits += part.getNumBits();
+			LOG.info("Resume index of "+collected.length+" parts, "+bits/8/1024/1024+" MB off heap");
+		}
+		return new DuplicateFilter(seen, elsewhere, collected, split);
+	}
+
+	/**
+	 * @return where the split starts, "path:offset" of its first line and ":offset" of its first
+	 * word if it has a slice of the wordlist. Unlike the task number this does not depend on the
+	 * order the splits are planned in.
+	 */
+	public static String getSplitKey(InputSplit split)
+	{
+		StringBuilder key = new StringBuilder();
+		FileSplit first;
+		if(split instanceof DnsRequestSplit)
+		{
+			DnsRequestSplit requestSplit = (DnsRequestSplit)split;
+			first = requestSplit.getChunks()[0];
+			key.append(first.getPath().toUri().getPath()).append(':').append(first.getStart());
+			if(requestSplit.hasWords())
+				key.append(':').append(requestSplit.getWordStart());
+		}
+		else
+		{
+			first = (FileSplit)split;
+			key.append(first.getPath().toUri().getPath()).append(':').append(first.getStart());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Ships the filter parts under dir to the tasks through the distributed cache.
+	 */
+	public static void addToCache(Job job, Path dir, String prefix) throws IOException
+	{
+		Configuration conf = job.getConfiguration();
+		FileSystem fs = dir.getFileSystem(conf);
+		for(Path part : listParts(fs, dir))
+		{
+			if(part.getName().startsWith(prefix))
+				DistributedCache.addCacheFile(fs.makeQualified(part).toUri(), conf);
+		}
+	}
+
+	// the parts written by the DedupeJob or ResumeIndexJob reducers, by partition or combined
+	private static BloomFilter[] readFilters(Configuration conf, String dir, String prefix, boolean partitioned) throws IOException
+	{
+		BloomFilter[] filters = null;
+		Path[] cached = DistributedCache.getLocalCacheFiles(conf);
+		if(cached != null)
+			filters = readParts(FileSystem.getLocal(conf), cached, prefix, partitioned);
+		if(filters == null)
+		{
+			// e.g. the local runner, which does not localize cache files
+			Path path = new Path(dir);
+			FileSystem fs = path.getFileSystem(conf);
+			filters = readParts(fs, listParts(fs, path), prefix, partitioned);
+		}
+		if(filters == null)
+			throw new IOException("No "+prefix+"* filter in "+dir);
+		return filters;
+	}
+	
+	private static BloomFilter[] readParts(FileSystem fs, Path[] parts, String prefix, boolean partitioned) throws IOException
+	{
+		List<BloomFilter> filters = new ArrayList<BloomFilter>();
+		for(Path part : parts)
+		{
+			if(!part.getName().startsWith(prefix))
+				continue;
+			InputStream in = fs.open(part);
+			try {
+				BloomFilter filter = BloomFilter.read(new DataInputStream(in));
+				if(partitioned)
+				{
+					// named for the reducer, which is the partition
+					int partition = Integer.parseInt(part.getName().substring(prefix.length()));
+					while(filters.size() <= partition)
+						filters.add(null);
+					filters.set(partition, filter);
+				}
+				else if(filters.isEmpty())
+					filters.add(filter);
+				else
+					filters.get(0).or(filter);
+			} finally {
+				in.close();
+			}
+		}
+		if(filters.isEmpty())
+			return null;
+		if(filters.contains(null))
+			throw new IOException("Missing filter "+prefix+filters.indexOf(null));
+		return filters.toArray(new BloomFilter[filters.size()]);
+	}
+
+	private static Path[] listParts(FileSystem fs, Path dir) throws IOException
+	{
+		FileStatus[] files = fs.listStatus(dir);
+		if(files == null)
+			throw new IOException("No filter in "+dir);
+		Path[] parts = new Path[files.length];
+		for(int i = 0; i < files.length; ++i)
+			parts[i] = files[i].getPath();
+		return parts;
+	}
+
+	/**
+	 * @return true if the request was made before, by an earlier run or in this one
+	 */
+	public boolean isDuplicate(DnsRequest request)
+	{
+		if(collected != null)
+		{
+			buffer.setLength(0);
+			appendKey(buffer, request);
+			int length = encode(buffer);
+			if(collected[partition(key, length, collected.length)].mightContain(key, length))
+			{
+				alreadyCollected++;
+				return true;
+			}
+		}
+		
+		if(elsewhere != null)
+		{
+			buffer.setLength(0);
+			appendKey(buffer.append(split).append('\t'), request);
+			if(elsewhere.mightContain(key, encode(buffer)))
+			{
+				ownedElsewhere++;
+				return true;
+			}
+		}
+
+		if(seen != null)
+		{
+			buffer.setLength(0);
+			appendKey(buffer, request);
+			if(!seen.add(key, encode(buffer)))
+			{
+				duplicates++;
+				return true;
+			}
+		}
+		fresh++;
+		return false;
+	}
+
+	/**
+	 * Appends "name TAB class TAB type", the key the collection output is written under.
+	 */
+	public static StringBuilder appendKey(StringBuilder buffer, DnsRequest request)
+	{
+		request.appendName(buffer).append('\t');
+		buffer.append(DClass.string(request.getDclass())).append('\t');
+		return buffer.append(Type.string(request.getRequestType()));
+	}
+
+	private int encode(CharSequence chars)
+	{
+		if(key.length < chars.length())
+			key = new byte[Math.max(chars.length(), key.length * 2)];
+		return encode(chars, key);
+	}
+	
+	/**
+	 * Encodes a key the way the filters hash it, into a big enough array.
+	 * 
+	 * @return the number of bytes
+	 */
+	public static int encode(CharSequence chars, byte[] into)
+	{
+		// names are ASCII, anything else only has to hash consistently
+		int length = chars.length();
+		for(int i = 0; i < length; ++i)
+			into[i] = (byte)chars.charAt(i);
+		return length;
+	}
+
+	/**
+	 * @return the {@link ResumeIndexJob} partition of an encoded key
+	 */
+	public static int partition(byte[] key, int length, int numPartitions)
+	{
+		return (WritableComparator.hashBytes(key, length) & Integer.MAX_VALUE) % numPartitions;
+	}
+
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	public long getOwnedElsewhere() {
+		return ownedElsewhere;
+	}
+
+	public long getAlreadyCollected() {
+		return alreadyCollected;
+	}
+
+	/**
+	 * @return the requests that were let through
+	 */
+	public long getFresh() {
+		return fresh;
+	}
+}
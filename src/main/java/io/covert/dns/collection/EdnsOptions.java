@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import org.apache.hadoop.conf.Configuration;
+import org.xbill.DNS.Type;
+
+/**
+ * The EDNS0 (RFC 6891) OPT record added to every query, so nameservers can send answers
+ * bigger than 512 bytes over UDP instead of truncating them.
+ */
+public class EdnsOptions {
+
+	/** the payload size recommended since DNS flag day 2020, avoids IP fragmentation */
+	public static final int DEFAULT_PAYLOAD_SIZE = 1232;
+
+	private static final int DO_FLAG = 0x8000;
+	private static final int NSID_OPTION = 3;
+
+	final int payloadSize;
+	final boolean dnssecOk;
+	final boolean nsid;
+
+	public EdnsOptions(int payloadSize, boolean dnssecOk, boolean nsid)
+	{
+		if(payloadSize < 512 || payloadSize > 0xFFFF)
+			throw new IllegalArgumentException("EDNS payload size must be between 512 and 65535: "+payloadSize);
+		this.payloadSize = payloadSize;
+		this.dnssecOk = dnssecOk;
+		this.nsid = nsid;
+	}
+
+	/**
+	 * @return the options configured by dns.collection.edns.*, or null if EDNS is off
+	 */
+	public static EdnsOptions create(Configuration conf)
+	{
+		if(!conf.getBoolean("dns.collection.edns", false))
+			return null;
+
+		return new EdnsOptions(
+				conf.getInt("dns.collection.edns.payload", DEFAULT_PAYLOAD_SIZE),
+				conf.getBoolean("dns.collection.edns.do", false),
+				conf.getBoolean("dns.collection.edns.nsid", false));
+	}
+
+	/**
+	 * @return the OPT record as it goes in the additional section
+	 */
+	public byte[] toWire()
+	{
+		int rdLength = nsid ? 4 : 0;
+		byte[] wire = new byte[11 + rdLength];
+		int flags = dnssecOk ? DO_FLAG : 0;
+
+		// root name, type, payload size in the class, extended rcode and version 0 in the TTL
+		wire[0] = 0;
+		wire[1] = (byte)(Type.OPT >>> 8);
+		wire[2] = (byte)Type.OPT;
+		wire[3] = (byte)(payloadSize >>> 8);
+		wire[4] = (byte)payloadSize;
+		wire[7] = (byte)(flags >>> 8);
+		wire[8] = (byte)flags;
+		wire[9] = (byte)(rdLength >>> 8);
+		wire[10] = (byte)rdLength;
+
+		if(nsid)
+		{
+			// an empty NSID option asks the nameserver to identify itself
+			wire[11] = (byte)(NSID_OPTION >>> 8);
+			wire[12] = (byte)NSID_OPTION;
+		}
+		return wire;
+	}
+
+	public int getPayloadSize() {
+		return payloadSize;
+	}
+
+	public boolean isDnssecOk() {
+		return dnssecOk;
+	}
+
+	public boolean isNsid() {
+		return nsid;
+	}
+}
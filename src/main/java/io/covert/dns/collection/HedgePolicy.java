@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+
+/**
+ * Decides when a query is hedged, i.e. also sent to a second nameserver because the first
+ * one is slower than usual. Shared by all resolver threads in a mapper.
+ *
+ * The hedge delay is a percentile (p95 by default) of the recent response times of the
+ * nameserver that was queried first, and hedges are capped at a fraction of all queries.
+ */
+public class HedgePolicy {
+
+	private static final Logger LOG = Logger.getLogger(HedgePolicy.class);
+
+	final LatencyHistogram[] latencies;
+	final double percentile;
+	final double budget;
+	final long minSamples;
+	final long window;
+	final long minDelayMs;
+
+	long queries = 0;
+	long hedges = 0;
+	long wins = 0;
+
+	public HedgePolicy(int numNameservers, double percentile, double budget, long minSamples, long window, long minDelayMs)
+	{
+		this.percentile = percentile;
+		this.budget = budget;
+		this.minSamples = minSamples;
+		this.window = window;
+		this.minDelayMs = minDelayMs;
+
+		latencies = new LatencyHistogram[numNameservers];
+		for(int i = 0; i < numNameservers; ++i)
+			latencies[i] = new LatencyHistogram();
+	}
+
+	/**
+	 * @return a policy configured from dns.collection.hedge.*, or null if hedging is off
+	 */
+	public static HedgePolicy create(Configuration conf, int numNameservers)
+	{
+		if(!conf.getBoolean("dns.collection.hedge", false))
+			return null;
+		if(numNameservers < 2)
+		{
+			LOG.warn("Hedging needs at least two nameservers, not hedging");
+			return null;
+		}
+
+		return new HedgePolicy(numNameservers,
+				conf.getFloat("dns.collection.hedge.percentile", 0.95f),
+				conf.getFloat("dns.collection.hedge.budget", 0.05f),
+				conf.getLong("dns.collection.hedge.min.samples", 100),
+				conf.getLong("dns.collection.hedge.window", 10000),
+				conf.getLong("dns.collection.hedge.min.ms", 5));
+	}
+
+	/**
+	 * Called once for every query sent to a nameserver, this also feeds the hedge budget.
+	 *
+	 * @return how long to wait before hedging, or -1 if too little is known about the nameserver yet
+	 */
+	public synchronized long getHedgeDelayMs(int nameserver)
+	{
+		queries++;
+		LatencyHistogram h = latencies[nameserver];
+		if(h.getCount() < minSamples)
+			return -1;
+		return Math.max(minDelayMs, h.percentile(percentile));
+	}
+
+	/**
+	 * @return true if there is budget left for another hedge, which is then used up
+	 */
+	public synchronized boolean tryHedge()
+	{
+		if(hedges + 1 > budget * queries)
+			return false;
+		hedges++;
+		return true;
+	}
+
+	public synchronized void onSample(int nameserver, long latencyMs)
+	{
+		LatencyHistogram h = latencies[nameserver];
+		h.record(latencyMs);
+		if(h.getCount() >= window)
+			h.decay();
+	}
+
+	/**
+	 * The hedge answered before the original query.
+	 */
+	public synchronized void onWin() {
+		wins++;
+	}
+
+	public synchronized long getHedges() {
+		return hedges;
+	}
+
+	public synchronized long getWins() {
+		return wins;
+	}
+}
@@ -0,0 +1,386 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.DNSInput;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * Resolves queries without a recursive nameserver, by following referrals down from the root
+ * servers to the servers authoritative for the name. The delegations found on the way,
+ * the nameservers of a zone with the addresses from the glue, are kept in a bounded LRU cache
+ * shared by all threads of a mapper, so mostly only the last step goes out.
+ *
+ * The final response is returned as received: an answer, an error, an authoritative NODATA or
+ * whatever a server returns that is not a referral. Lame servers, which refer back up or
+ * answer REFUSED, SERVFAIL or NOTIMP, are passed over for the zone's other servers, and only if
+ * none does better is such a response returned. CNAMEs are not followed. Only IPv4 addresses
+ * are used.
+ */
+public class IterativeResolver {
+
+	private static final Logger LOG = Logger.getLogger(IterativeResolver.class);
+
+	public static final String ROOT_SERVERS = "198.41.0.4,170.247.170.2,192.33.4.12,199.7.91.13,192.203.230.10,192.5.5.241," +
+			"192.112.36.4,198.97.190.53,192.36.148.17,192.58.128.30,193.0.14.129,199.7.83.42,202.12.27.33";
+
+	// most referrals followed for one query, and glueless nameserver lookups nested in it
+	private static final int MAX_REFERRALS = 16;
+	private static final int MAX_DEPTH = 3;
+	// glueless nameservers looked up per referral before giving up on it
+	private static final int MAX_NS_LOOKUPS = 3;
+	private static final long MAX_TTL_MS = 24 * 3600 * 1000L;
+
+	final InetSocketAddress[] roots;
+	final int port;
+	final long serverTimeoutMs;
+	final Map<Name, Delegation> cache;
+	final Random random = new Random();
+
+	final AtomicLong queries = new AtomicLong();
+	final AtomicLong referrals = new AtomicLong();
+	final AtomicLong cacheHits = new AtomicLong();
+
+	static class Delegation
+	{
+		final InetSocketAddress[] servers;
+		final long expires;
+
+		Delegation(InetSocketAddress[] servers, long expires)
+		{
+			this.servers = servers;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * @param roots where every walk starts that has nothing cached
+	 * @param port the port of the nameservers learnt from referrals
+	 * @param serverTimeoutMs how long to wait for one server before trying the next
+	 * @param cacheSize the most zones to keep delegations for
+	 */
+	public IterativeResolver(InetSocketAddress[] roots, int port, long serverTimeoutMs, final int cacheSize)
+	{
+		this.roots = roots;
+		this.port = port;
+		this.serverTimeoutMs = serverTimeoutMs;
+		this.cache = new LinkedHashMap<Name, Delegation>(1024, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Name, Delegation> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * @return a resolver configured by dns.collection.iterative.*
+	 */
+	public static IterativeResolver create(Configuration conf) throws IOException
+	{
+		int port = conf.getInt("dns.collection.iterative.port", 53);
+		String[] hosts = conf.get("dns.collection.iterative.roots", ROOT_SERVERS).split(",");
+		InetSocketAddress[] roots = new InetSocketAddress[hosts.length];
+		for(int i = 0; i < hosts.length; ++i)
+		{
+			// host or host:port
+			String host = hosts[i].trim();
+			int rootPort = port;
+			int colon = host.indexOf(':');
+			if(colon >= 0)
+			{
+				rootPort = Integer.parseInt(host.substring(colon + 1));
+				host = host.substring(0, colon);
+			}
+			roots[i] = new InetSocketAddress(InetAddress.getByName(host), rootPort);
+		}
+
+		return new IterativeResolver(roots, port,
+				conf.getLong("dns.collection.iterative.timeout.ms", 1000),
+				conf.getInt("dns.collection.iterative.cache.size", 100000));
+	}
+
+	/**
+	 * Resolves the query in the session's encoder.
+	 *
+	 * @return the final response as received
+	 */
+	public byte[] resolve(ResolverThread.Session session, long deadline) throws IOException
+	{
+		byte[] query = session.encoder.array();
+		DNSInput in = new DNSInput(query);
+		in.jump(DnsResponse.HEADER_LENGTH);
+		return resolve(session, query, session.encoder.length(), new Name(in), deadline, 0);
+	}
+
+	private byte[] resolve(ResolverThread.Session session, byte[] query, int length, Name qname, long deadline, int depth) throws IOException
+	{
+		Name zone = Name.root;
+		InetSocketAddress[] servers = roots;
+
+		// start at the closest zone we know the nameservers of
+		long now = System.currentTimeMillis();
+		for(Name name = qname; name.labels() > 1; name = new Name(name, 1))
+		{
+			Delegation delegation = lookup(name, now);
+			if(delegation != null)
+			{
+				cacheHits.incrementAndGet();
+				zone = name;
+				servers = delegation.servers;
+				break;
+			}
+		}
+
+		for(int referral = 0; referral < MAX_REFERRALS; ++referral)
+		{
+			byte[] lame = null;
+			Message message = null;
+			Name child = null;
+
+			// the servers are tried in turn from a random one until one refers us
+			// further down or gives a final response
+			int first = random.nextInt(servers.length);
+			for(int i = 0; i < servers.length && child == null; ++i)
+			{
+				InetSocketAddress server = servers[(first + i) % servers.length];
+				byte[] response = exchange(session, query, length, server, deadline);
+				if(response == null)
+					continue;
+
+				message = new Message(response);
+				if(isLame(message))
+				{
+					LOG.debug("Lame response "+Rcode.string(message.getRcode())+" for "+qname+" from "+server+" at "+zone);
+					lame = response;
+					continue;
+				}
+				if(!isReferral(message))
+					return response;
+
+				child = getReferredZone(message, zone, qname);
+				if(child == null)
+				{
+					LOG.debug("Bad referral for "+qname+" from "+server+" at "+zone);
+					lame = response;
+				}
+			}
+			if(child == null)
+			{
+				if(lame == null)
+					throw new SocketTimeoutException("No nameserver of "+zone+" answered for "+qname);
+				// none of them knows better, return what one of them said
+				return lame;
+			}
+
+			referrals.incrementAndGet();
+			InetSocketAddress[] childServers = getServers(session, message, zone, child, deadline, depth);
+			if(childServers.length == 0)
+				throw new IOException("No address for any nameserver of "+child+" resolving "+qname);
+			zone = child;
+			servers = childServers;
+			put(zone, servers, getTtl(message, zone));
+		}
+		throw new IOException("Too many referrals resolving "+qname);
+	}
+
+	// the server does not serve the zone, or not properly, another one of it may
+	private static boolean isLame(Message message)
+	{
+		int rcode = message.getRcode();
+		return rcode == Rcode.REFUSED || rcode == Rcode.SERVFAIL || rcode == Rcode.NOTIMP;
+	}
+
+	private static boolean isReferral(Message message)
+	{
+		return message.getRcode() == Rcode.NOERROR
+				&& !message.getHeader().getFlag(Flags.AA)
+				&& message.getSectionArray(Section.ANSWER).length == 0;
+	}
+
+	// the zone the NS records in the authority section are for, if it is further down towards the name
+	private static Name getReferredZone(Message message, Name zone, Name qname)
+	{
+		for(Record record : message.getSectionArray(Section.AUTHORITY))
+		{
+			Name name = record.getName();
+			if(record.getType() == Type.NS && !name.equals(zone) && name.subdomain(zone) && qname.subdomain(name))
+				return name;
+		}
+		return null;
+	}
+
+	// how long to keep the delegation, capped before converting so no TTL overflows
+	static long getTtl(Message message, Name child)
+	{
+		long ttl = MAX_TTL_MS / 1000;
+		for(Record record : message.getSectionArray(Section.AUTHORITY))
+		{
+			if(record.getType() == Type.NS && record.getName().equals(child))
+				ttl = Math.min(ttl, record.getTTL());
+		}
+		return ttl * 1000L;
+	}
+
+	// addresses of the child zone's nameservers, from the glue or else looked up
+	private InetSocketAddress[] getServers(ResolverThread.Session session, Message message, Name zone, Name child, long deadline, int depth) throws IOException
+	{
+		List<Name> targets = new ArrayList<Name>();
+		for(Record record : message.getSectionArray(Section.AUTHORITY))
+		{
+			if(record.getType() == Type.NS && record.getName().equals(child))
+				targets.add(((NSRecord)record).getTarget());
+		}
+
+		List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+		for(Record record : message.getSectionArray(Section.ADDITIONAL))
+		{
+			// only glue the referring server is authoritative for
+			if(record.getType() == Type.A && targets.contains(record.getName()) && record.getName().subdomain(zone))
+				servers.add(new InetSocketAddress(((ARecord)record).getAddress(), port));
+		}
+		if(!servers.isEmpty() || depth >= MAX_DEPTH)
+			return servers.toArray(new InetSocketAddress[servers.size()]);
+
+		Collections.shuffle(targets, random);
+		for(int i = 0; i < targets.size() && i < MAX_NS_LOOKUPS && servers.isEmpty(); ++i)
+		{
+			Name target = targets.get(i);
+			if(target.subdomain(child))
+				continue;
+			try {
+				servers.addAll(lookupAddresses(session, target, deadline, depth + 1));
+			} catch (IOException e) {
+				LOG.debug("Failed to look up nameserver "+target+" of "+child+": "+e.getMessage());
+			}
+		}
+		return servers.toArray(new InetSocketAddress[servers.size()]);
+	}
+
+	private List<InetSocketAddress> lookupAddresses(ResolverThread.Session session, Name name, long deadline, int depth) throws IOException
+	{
+		Message query = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+		query.getHeader().unsetFlag(Flags.RD);
+		byte[] wire = query.toWire();
+
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		Message response = new Message(resolve(session, wire, wire.length, name, deadline, depth));
+		for(Record record : response.getSectionArray(Section.ANSWER))
+		{
+			if(record.getType() == Type.A)
+				addresses.add(new InetSocketAddress(((ARecord)record).getAddress(), port));
+		}
+		return addresses;
+	}
+
+	/**
+	 * @return the response, or null if the server did not answer in time
+	 */
+	private byte[] exchange(ResolverThread.Session session, byte[] query, int length, InetSocketAddress server, long deadline) throws IOException
+	{
+		long now = System.currentTimeMillis();
+		if(now >= deadline)
+			throw new SocketTimeoutException("No response within the deadline");
+		long serverDeadline = Math.min(deadline, now + serverTimeoutMs);
+
+		queries.incrementAndGet();
+		DatagramSocket socket = session.socket();
+		DatagramPacket packet = session.packet;
+		int id = DnsResponse.getId(query);
+		session.send(query, length, server);
+		while(true)
+		{
+			now = System.currentTimeMillis();
+			if(now >= serverDeadline)
+				return null;
+
+			socket.setSoTimeout((int)Math.max(1, serverDeadline - now));
+			try {
+				packet.setLength(session.buffer.length);
+				socket.receive(packet);
+			} catch (SocketTimeoutException e) {
+				continue;
+			}
+
+			// late answers from servers given up on earlier are dropped
+			if(session.isFrom(server) && packet.getLength() >= DnsResponse.HEADER_LENGTH && DnsResponse.getId(session.buffer) == id)
+				return Arrays.copyOf(session.buffer, packet.getLength());
+		}
+	}
+
+	synchronized Delegation lookup(Name zone, long now)
+	{
+		Delegation delegation = cache.get(zone);
+		if(delegation != null && delegation.expires <= now)
+		{
+			cache.remove(zone);
+			return null;
+		}
+		return delegation;
+	}
+
+	synchronized void put(Name zone, InetSocketAddress[] servers, long ttlMs)
+	{
+		cache.put(zone, new Delegation(servers, System.currentTimeMillis() + ttlMs));
+	}
+
+	public synchronized int getCacheSize() {
+		return cache.size();
+	}
+
+	/**
+	 * @return the queries sent to root, TLD and authoritative servers
+	 */
+	public long getQueries() {
+		return queries.get();
+	}
+
+	public long getReferrals() {
+		return referrals.get();
+	}
+
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import io.covert.util.BoundedBuffer;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Resolves requests itself with an {@link IterativeResolver} instead of asking the configured
+ * nameservers. Each walk gets dns.collection.timeout.ms and is retried dns.collection.retries
+ * times as a whole. None of the per nameserver machinery applies, since the configured
+ * nameservers are never asked: no selection, rate limits, adaptive timeouts, hedging, TCP or
+ * per nameserver metrics, and the output metadata has nameserver -1. Truncated responses are
+ * counted and kept as they are.
+ */
+public class IterativeResolverThread extends ResolverThread {
+
+	private static final Logger LOG = Logger.getLogger(IterativeResolverThread.class);
+
+	IterativeResolver resolver;
+
+	public IterativeResolverThread(
+			BoundedBuffer<DnsRequest> inQueue,
+			BoundedBuffer<DnsResponse> outQueue,
+			String[] nameservers,
+			int timeoutSecs,
+			IterativeResolver resolver) {
+		super(inQueue, outQueue, nameservers, timeoutSecs);
+		this.resolver = resolver;
+	}
+
+	@Override
+	protected Session openSession()
+	{
+		if(session == null)
+		{
+			// authoritative servers do not recurse
+			session = new Session(edns);
+			session.encoder.setRecursionDesired(false);
+		}
+		return session;
+	}
+
+	@Override
+	protected DnsResponse process(DnsRequest req, Session session, ResolverStats stats) throws InterruptedException
+	{
+		long timeoutMs = timeouts.getMaxMs();
+		int retries = timeouts.getRetries();
+		for(int attempt = 0; attempt <= retries; ++attempt)
+		{
+			if(attempt > 0)
+			{
+				int id = DnsResponse.getId(session.encoder.array());
+				session.encoder.setId((id + 1 + random.nextInt(0xFFFF)) & 0xFFFF);
+				++stats.retransmissions;
+			}
+
+			long sentMs = System.currentTimeMillis();
+			long sentNanos = System.nanoTime();
+			try {
+				byte[] wire = resolver.resolve(session, sentMs + timeoutMs);
+				long receivedNanos = System.nanoTime();
+				DnsResponse result = new DnsResponse(req, wire);
+				result.setMetadata(-1, (receivedNanos - sentNanos) / 1000, sentMs);
+				int rcode = result.getRcode();
+				stats.onParse(System.nanoTime() - receivedNanos);
+				stats.onResponse(-1, rcode, receivedNanos - sentNanos, wire.length);
+				if(DnsResponse.isTruncated(wire))
+					++stats.truncated;
+				if(concurrencyLimiter != null)
+					concurrencyLimiter.onSample(receivedNanos - sentNanos);
+				if(LOG.isDebugEnabled())
+					LOG.debug("Response for "+req+": "+result);
+				stats.performRequestNanos += System.nanoTime() - sentNanos;
+				return result;
+			}
+			catch(SocketTimeoutException e)
+			{
+				stats.performRequestNanos += System.nanoTime() - sentNanos;
+				if(concurrencyLimiter != null)
+					concurrencyLimiter.onDrop();
+				if(attempt == retries)
+				{
+					LOG.error("Timed out when resolving name: "+req+" iteratively after "+(attempt+1)+" attempts, reason: "+e.getMessage());
+					++stats.requestTimeouts;
+					retry(req);
+				}
+			}
+			catch (IOException e) {
+				stats.performRequestNanos += System.nanoTime() - sentNanos;
+				LOG.error("Failed resolving name: "+req+" iteratively, reason: "+e.getMessage());
+				++stats.lookupsFailures;
+				retry(req);
+				break;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Histogram of non-negative values in log spaced buckets, every power of two is split into
+ * 8 linear sub-buckets so percentiles are accurate to within 12.5%. Not thread safe.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB = 1 << SUB_BITS;
+	static final int NUM_BUCKETS = (64 - SUB_BITS + 1) * SUB;
+
+	final long[] counts = new long[NUM_BUCKETS];
+	long count = 0;
+
+	public void record(long value)
+	{
+		counts[index(Math.max(0, value))]++;
+		count++;
+	}
+
+	/**
+	 * @param p a fraction between 0 and 1, e.g. 0.95
+	 * @return the upper bound of the bucket holding the p'th value, or 0 if nothing was recorded
+	 */
+	public long percentile(double p)
+	{
+		if(count == 0)
+			return 0;
+
+		long rank = (long)Math.ceil(p * count);
+		long seen = 0;
+		for(int i = 0; i < NUM_BUCKETS; ++i)
+		{
+			seen += counts[i];
+			if(seen >= Math.max(1, rank))
+				return upperBound(i);
+		}
+		return upperBound(NUM_BUCKETS - 1);
+	}
+
+	/**
+	 * Halves every bucket, so older values fade out as new ones are recorded.
+	 */
+	public void decay()
+	{
+		count = 0;
+		for(int i = 0; i < NUM_BUCKETS; ++i)
+		{
+			counts[i] >>= 1;
+			count += counts[i];
+		}
+	}
+
+	public void add(LatencyHistogram other)
+	{
+		for(int i = 0; i < NUM_BUCKETS; ++i)
+			counts[i] += other.counts[i];
+		count += other.count;
+	}
+
+	/**
+	 * Writes the buckets that are not empty.
+	 */
+	public void write(DataOutput out) throws IOException
+	{
+		int used = 0;
+		for(int i = 0; i < NUM_BUCKETS; ++i)
+		{
+			if(counts[i] != 0)
+				used++;
+		}
+		out.writeInt(used);
+		for(int i = 0; i < NUM_BUCKETS; ++i)
+		{
+			if(counts[i] != 0)
+			{
+				out.writeShort(i);
+				out.writeLong(counts[i]);
+			}
+		}
+	}
+
+	public static LatencyHistogram read(DataInput in) throws IOException
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		int used = in.readInt();
+		for(int i = 0; i < used; ++i)
+		{
+			int index = in.readShort();
+			long count = in.readLong();
+			histogram.counts[index] += count;
+			histogram.count += count;
+		}
+		return histogram;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	static int index(long value)
+	{
+		if(value < SUB)
+			return (int)value;
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exp - SUB_BITS)) & (SUB - 1);
+		return (exp - SUB_BITS + 1) * SUB + sub;
+	}
+
+	static long lowerBound(int index)
+	{
+		if(index < SUB)
+			return index;
+		int exp = index / SUB + SUB_BITS - 1;
+		return (long)(SUB + index % SUB) << (exp - SUB_BITS);
+	}
+
+	static long upperBound(int index)
+	{
+		if(index == NUM_BUCKETS - 1)
+			return Long.MAX_VALUE;
+		return lowerBound(index + 1) - 1;
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.xbill.DNS.Rcode;
+
+/**
+ * The latency histograms of a collection run, in nanoseconds, by phase and for sending also by
+ * nameserver and rcode. Percentiles do not add up like counters, so every map task writes its
+ * histograms under outDir/_latency and {@link CollectionJob} merges them into a summary of 
+ * p50/p99/p999 once the job is done.
+ */
+public class LatencyReport {
+
+	public static final String DIR = "_latency";
+	public static final String PART_PREFIX = "latency-";
+	public static final String SUMMARY = "summary";
+
+	final Map<String, LatencyHistogram> histograms = new TreeMap<String, LatencyHistogram>();
+
+	/**
+	 * @param nameservers the names of the nameservers the stats index
+	 */
+	public static LatencyReport create(ResolverStats stats, String[] nameservers)
+	{
+		LatencyReport report = new LatencyReport();
+		report.add("construct", stats.construct);
+		report.add("parse", stats.parse);
+		for(int i = 0; i < stats.sendByNameserver.length; ++i)
+		{
+			if(stats.sendByNameserver[i] == null)
+				continue;
+			report.add("send", stats.sendByNameserver[i]);
+			report.add("send:"+(i < nameservers.length ? nameservers[i] : Integer.toString(i)), stats.sendByNameserver[i]);
+		}
+		for(int i = 0; i < stats.sendByRcode.length; ++i)
+		{
+			if(stats.sendByRcode[i] != null)
+				report.add("send:"+Rcode.string(i), stats.sendByRcode[i]);
+		}
+		return report;
+	}
+
+	public void add(String name, LatencyHistogram histogram)
+	{
+		LatencyHistogram merged = histograms.get(name);
+		if(merged == null)
+		{
+			merged = new LatencyHistogram();
+			histograms.put(name, merged);
+		}
+		merged.add(histogram);
+	}
+
+	public void add(LatencyReport other)
+	{
+		for(Map.Entry<String, LatencyHistogram> e : other.histograms.entrySet())
+			add(e.getKey(), e.getValue());
+	}
+
+	public void write(FileSystem fs, Path file) throws IOException
+	{
+		DataOutputStream out = fs.create(file);
+		try {
+			out.writeInt(histograms.size());
+			for(Map.Entry<String, LatencyHistogram> e : histograms.entrySet())
+			{
+				out.writeUTF(e.getKey());
+				e.getValue().write(out);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the reports of all map tasks under dir, merged
+	 */
+	public static LatencyReport read(FileSystem fs, Path dir) throws IOException
+	{
+		LatencyReport report = new LatencyReport();
+		FileStatus[] files = fs.listStatus(dir);
+		if(files == null)
+			return report;
+		for(FileStatus file : files)
+		{
+			if(!file.getPath().getName().startsWith(PART_PREFIX))
+				continue;
+			DataInputStream in = fs.open(file.getPath());
+			try {
+				int n = in.readInt();
+				for(int i = 0; i < n; ++i)
+				{
+					String name = in.readUTF();
+					report.add(name, LatencyHistogram.read(in));
+				}
+			} finally {
+				in.close();
+			}
+		}
+		return report;
+	}
+
+	/**
+	 * @return a "name count p50 p99 p999" line per histogram, in microseconds
+	 */
+	public List<String> summarize()
+	{
+		List<String> lines = new ArrayList<String>();
+		lines.add("name\tcount\tp50_us\tp99_us\tp999_us");
+		for(Map.Entry<String, LatencyHistogram> e : histograms.entrySet())
+		{
+			LatencyHistogram h = e.getValue();
+			lines.add(e.getKey()+"\t"+h.getCount()+"\t"+micros(h.percentile(0.5))+"\t"+
+					micros(h.percentile(0.99))+"\t"+micros(h.percentile(0.999)));
+		}
+		return lines;
+	}
+
+	public void writeSummary(FileSystem fs, Path file) throws IOException
+	{
+		PrintWriter out = new PrintWriter(fs.create(file));
+		try {
+			for(String line : summarize())
+				out.println(line);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String micros(long nanos)
+	{
+		return String.format("%.1f", nanos / 1000.0);
+	}
+
+	public LatencyHistogram get(String name) {
+		return histograms.get(name);
+	}
+}
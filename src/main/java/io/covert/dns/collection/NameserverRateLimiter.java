@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.xbill.DNS.Rcode;
+
+/**
+ * Token bucket per nameserver, shared by all resolver threads in a mapper.
+ *
+ * The rate adapts with AIMD: outcomes are counted in windows, a window where the share of
+ * timeouts and SERVFAILs is above the threshold multiplies the rate by the decrease factor,
+ * a healthy window adds the increase step. The rate always stays between the min and max,
+ * and under the ceiling of each nameserver when one is set (see {@link ClusterBudget}).
+ */
+public class NameserverRateLimiter {
+
+	private static final Logger LOG = Logger.getLogger(NameserverRateLimiter.class);
+
+	static class Bucket
+	{
+		double rate;
+		double burst;
+		double tokens;
+		long lastRefill;
+		double ceiling = Double.MAX_VALUE;
+
+		// demand, for deciding whether a bigger share of a cluster budget would help
+		long acquired = 0;
+		long waited = 0;
+
+		int windowCount = 0;
+		int windowErrors = 0;
+	}
+
+	final Bucket[] buckets;
+	final double minQps;
+	final double maxQps;
+	final double increaseQps;
+	final double decreaseFactor;
+	final double errorThreshold;
+	final int windowSize;
+	final AtomicLong waitNanos = new AtomicLong(0);
+
+	public NameserverRateLimiter(int numNameservers, double qps, double minQps, double maxQps,
+			double increaseQps, double decreaseFactor, double errorThreshold, int windowSize)
+	{
+		this.minQps = minQps;
+		this.maxQps = maxQps;
+		this.increaseQps = increaseQps;
+		this.decreaseFactor = decreaseFactor;
+		this.errorThreshold = errorThreshold;
+		this.windowSize = windowSize;
+
+		long now = System.nanoTime();
+		buckets = new Bucket[numNameservers];
+		for(int i = 0; i < numNameservers; ++i)
+		{
+			buckets[i] = new Bucket();
+			buckets[i].lastRefill = now;
+			setRate(buckets[i], qps);
+			buckets[i].tokens = buckets[i].burst;
+		}
+	}
+
+	/**
+	 * @return a limiter configured from dns.collection.ratelimit.*, or null if rate limiting is disabled
+	 */
+	public static NameserverRateLimiter create(Configuration conf, int numNameservers)
+	{
+		float qps = conf.getFloat("dns.collection.ratelimit.qps", 0);
+		if(qps <= 0)
+			return null;
+
+		return new NameserverRateLimiter(numNameservers, qps,
+				conf.getFloat("dns.collection.ratelimit.min.qps", Math.min(10, qps)),
+				conf.getFloat("dns.collection.ratelimit.max.qps", qps * 10),
+				conf.getFloat("dns.collection.ratelimit.increase.qps", Math.max(1, qps / 20)),
+				conf.getFloat("dns.collection.ratelimit.decrease.factor", 0.5f),
+				conf.getFloat("dns.collection.ratelimit.error.threshold", 0.05f),
+				conf.getInt("dns.collection.ratelimit.window", 200));
+	}
+
+	/**
+	 * Takes a token for the nameserver, waiting until one is available.
+	 */
+	public void acquire(int nameserver) throws InterruptedException
+	{
+		Bucket b = buckets[nameserver];
+		long wait;
+		synchronized (b) {
+			refill(b, System.nanoTime());
+			// reserve the token now, even if that puts the bucket in debt, so waiting
+			// threads are served in order
+			b.tokens -= 1;
+			wait = b.tokens >= 0 ? 0 : (long)(-b.tokens / b.rate * 1e9);
+			b.acquired++;
+			if(wait > 0)
+				b.waited++;
+		}
+
+		if(wait > 0)
+		{
+			waitNanos.addAndGet(wait);
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Takes a token for the nameserver if one is available, never waits.
+	 */
+	public boolean tryAcquire(int nameserver)
+	{
+		Bucket b = buckets[nameserver];
+		synchronized (b) {
+			refill(b, System.nanoTime());
+			if(b.tokens < 1)
+			{
+				b.waited++;
+				return false;
+			}
+			b.tokens -= 1;
+			b.acquired++;
+			return true;
+		}
+	}
+
+	public void onResponse(int nameserver, int rcode)
+	{
+		record(nameserver, rcode == Rcode.SERVFAIL);
+	}
+
+	public void onTimeout(int nameserver)
+	{
+		record(nameserver, true);
+	}
+
+	public double getRate(int nameserver)
+	{
+		Bucket b = buckets[nameserver];
+		synchronized (b) {
+			return b.rate;
+		}
+	}
+
+	/**
+	 * Caps the rate of the nameserver, if the rate was held back by the old ceiling it goes
+	 * straight up to the new one.
+	 */
+	public void setCeiling(int nameserver, double qps)
+	{
+		Bucket b = buckets[nameserver];
+		synchronized (b) {
+			refill(b, System.nanoTime());
+			boolean capped = b.rate >= b.ceiling;
+			b.ceiling = qps;
+			if(capped || b.rate > qps)
+				setRate(b, Math.min(maxQps, qps));
+		}
+	}
+
+	/**
+	 * @return how many tokens were taken for the nameserver so far
+	 */
+	public long getAcquired(int nameserver)
+	{
+		Bucket b = buckets[nameserver];
+		synchronized (b) {
+			return b.acquired;
+		}
+	}
+
+	/**
+	 * @return how often a token for the nameserver was not available right away
+	 */
+	public long getWaited(int nameserver)
+	{
+		Bucket b = buckets[nameserver];
+		synchronized (b) {
+			return b.waited;
+		}
+	}
+
+	public long getWaitMS()
+	{
+		return waitNanos.get() / 1000000L;
+	}
+
+	private void record(int nameserver, boolean error)
+	{
+		Bucket b = buckets[nameserver];
+		synchronized (b) {
+			b.windowCount++;
+			if(error)
+				b.windowErrors++;
+
+			if(b.windowCount < windowSize)
+				return;
+
+			double errorRate = (double)b.windowErrors / b.windowCount;
+			double old = b.rate;
+			refill(b, System.nanoTime());
+			if(errorRate > errorThreshold)
+			{
+				setRate(b, Math.max(Math.min(minQps, b.ceiling), b.rate * decreaseFactor));
+				LOG.info("Nameserver "+nameserver+" error rate "+errorRate+", backing off from "+old+" to "+b.rate+" qps");
+			}
+			else
+			{
+				setRate(b, Math.min(Math.min(maxQps, b.ceiling), b.rate + increaseQps));
+			}
+
+			b.windowCount = 0;
+			b.windowErrors = 0;
+		}
+	}
+
+	private static void setRate(Bucket b, double rate)
+	{
+		b.rate = rate;
+		// allow bursts of up to 100ms worth of requests
+		b.burst = Math.max(1, rate / 10);
+		if(b.tokens > b.burst)
+			b.tokens = b.burst;
+	}
+
+	private static void refill(Bucket b, long now)
+	{
+		b.tokens = Math.min(b.burst, b.tokens + (now - b.lastRefill) * b.rate / 1e9);
+		b.lastRefill = now;
+	}
+}
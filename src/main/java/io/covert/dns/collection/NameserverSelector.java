@@ -0,0 +1,281 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.xbill.DNS.Rcode;
+
+/**
+ * Picks a nameserver for each request, shared by all resolver threads in a mapper.
+ *
+ * Every nameserver keeps an EWMA of its latency and error rate. Selection uses the power of
+ * two choices: two random candidates are compared on latency, outstanding requests and error
+ * rate and the cheaper one wins. A small share of requests explores a random nameserver
+ * instead, so the scores of servers that lost every comparison still get refreshed.
+ *
+ * A nameserver that fails (times out or errors) too many times in a row has its circuit
+ * opened and is skipped. After a cool down a single half-open probe is let through, a
+ * response closes the circuit again and a failure re-opens it.
+ */
+public class NameserverSelector {
+
+	private static final Logger LOG = Logger.getLogger(NameserverSelector.class);
+
+	static final int CLOSED = 0;
+	static final int OPEN = 1;
+	static final int HALF_OPEN = 2;
+
+	static class Health
+	{
+		double latencyMs = 0;
+		double errorRate = 0;
+		boolean sampled = false;
+		int outstanding = 0;
+
+		int state = CLOSED;
+		int consecutiveFailures = 0;
+		long openedAt = 0;
+		boolean probing = false;
+
+		long selected = 0;
+		long opened = 0;
+	}
+
+	final String[] nameservers;
+	final Health[] health;
+	final double alpha;
+	final int failureThreshold;
+	final long cooldownMs;
+	final double explore;
+	final Random random = new Random();
+
+	public NameserverSelector(String[] nameservers, double alpha, int failureThreshold, long cooldownMs, double explore)
+	{
+		this.nameservers = nameservers;
+		this.alpha = alpha;
+		this.explore = explore;
+		this.failureThreshold = failureThreshold;
+		this.cooldownMs = cooldownMs;
+
+		health = new Health[nameservers.length];
+		for(int i = 0; i < health.length; ++i)
+			health[i] = new Health();
+	}
+
+	/**
+	 * @return a selector configured from dns.collection.nameserver.*, or null for the plain random selection
+	 */
+	public static NameserverSelector create(Configuration conf, String[] nameservers)
+	{
+		String mode = conf.get("dns.collection.nameserver.selection", "p2c");
+		if(mode.equals("random"))
+			return null;
+		if(!mode.equals("p2c"))
+			throw new IllegalArgumentException("Unknown dns.collection.nameserver.selection: "+mode);
+
+		return new NameserverSelector(nameservers,
+				conf.getFloat("dns.collection.nameserver.ewma.alpha", 0.1f),
+				conf.getInt("dns.collection.nameserver.breaker.failures", 10),
+				conf.getLong("dns.collection.nameserver.breaker.cooldown.ms", 5000),
+				conf.getFloat("dns.collection.nameserver.explore", 0.01f));
+	}
+
+	/**
+	 * Picks a nameserver. Every call must be followed by exactly one call to
+	 * {@link #onResponse(int, long, int)}, {@link #onFailure(int, long)} or {@link #onCancel(int)}
+	 * for the returned index.
+	 */
+	public synchronized int select()
+	{
+		long now = System.currentTimeMillis();
+		int n = health.length;
+
+		int first = -1;
+		int second = -1;
+		if(n == 1)
+		{
+			first = available(0, now) ? 0 : -1;
+		}
+		else
+		{
+			// two distinct random candidates, falling back to a scan if they are unavailable
+			int a = random.nextInt(n);
+			int b = (a + 1 + random.nextInt(n - 1)) % n;
+			if(available(a, now))
+				first = a;
+			if(available(b, now))
+				second = b;
+
+			for(int i = 0; first < 0 && i < n; ++i)
+			{
+				int c = (b + 1 + i) % n;
+				if(c != second && available(c, now))
+					first = c;
+			}
+		}
+
+		int choice;
+		if(first < 0 && second < 0)
+		{
+			// every circuit is open, send to the one that has been open the longest
+			choice = 0;
+			for(int i = 1; i < n; ++i)
+			{
+				if(health[i].openedAt < health[choice].openedAt)
+					choice = i;
+			}
+		}
+		else if(first < 0 || second < 0)
+		{
+			choice = first < 0 ? second : first;
+		}
+		else if(random.nextDouble() < explore)
+		{
+			choice = first;
+		}
+		else
+		{
+			choice = cost(first) <= cost(second) ? first : second;
+		}
+
+		Health h = health[choice];
+		if(h.state == OPEN && now - h.openedAt >= cooldownMs)
+			h.state = HALF_OPEN;
+		// whoever is sent to a half-open server is its probe, also after an earlier probe was cancelled
+		if(h.state == HALF_OPEN)
+			h.probing = true;
+		h.outstanding++;
+		h.selected++;
+		return choice;
+	}
+
+	/**
+	 * Picks a nameserver other than the given one, e.g. for a hedged request.
+	 */
+	public synchronized int selectOther(int exclude)
+	{
+		for(int i = 0; i < 3; ++i)
+		{
+			int choice = select();
+			if(choice != exclude)
+				return choice;
+			onCancel(choice);
+			health[choice].selected--;
+		}
+
+		int n = health.length;
+		int choice = (exclude + 1 + random.nextInt(n - 1)) % n;
+		health[choice].outstanding++;
+		health[choice].selected++;
+		return choice;
+	}
+
+	/**
+	 * The request was abandoned without an outcome, e.g. the other side of a hedge answered first.
+	 */
+	public synchronized void onCancel(int nameserver)
+	{
+		Health h = health[nameserver];
+		h.outstanding--;
+		// let another request probe the half-open circuit instead
+		h.probing = false;
+	}
+
+	public synchronized void onResponse(int nameserver, long latencyMs, int rcode)
+	{
+		Health h = health[nameserver];
+		h.outstanding--;
+		update(h, latencyMs, rcode == Rcode.SERVFAIL ? 1 : 0);
+
+		h.consecutiveFailures = 0;
+		if(h.state != CLOSED)
+		{
+			LOG.info("Closing circuit for nameserver "+nameservers[nameserver]);
+			h.state = CLOSED;
+			h.probing = false;
+		}
+	}
+
+	public synchronized void onFailure(int nameserver, long latencyMs)
+	{
+		Health h = health[nameserver];
+		h.outstanding--;
+		update(h, latencyMs, 1);
+
+		h.consecutiveFailures++;
+		if(h.state == HALF_OPEN || (h.state == CLOSED && h.consecutiveFailures >= failureThreshold))
+		{
+			LOG.info("Opening circuit for nameserver "+nameservers[nameserver]+" after "+h.consecutiveFailures+" consecutive failures");
+			h.state = OPEN;
+			h.probing = false;
+			h.openedAt = System.currentTimeMillis();
+			h.opened++;
+		}
+	}
+
+	public synchronized long getSelected(int nameserver) {
+		return health[nameserver].selected;
+	}
+
+	public synchronized long getOpened(int nameserver) {
+		return health[nameserver].opened;
+	}
+
+	public synchronized double getLatencyMs(int nameserver) {
+		return health[nameserver].latencyMs;
+	}
+
+	public synchronized double getErrorRate(int nameserver) {
+		return health[nameserver].errorRate;
+	}
+
+	private boolean available(int i, long now)
+	{
+		Health h = health[i];
+		if(h.state == CLOSED)
+			return true;
+		if(h.state == OPEN)
+			return now - h.openedAt >= cooldownMs;
+		// half-open, only one probe at a time
+		return !h.probing;
+	}
+
+	private double cost(int i)
+	{
+		Health h = health[i];
+		// penalize servers with outstanding requests and errors, never divide by zero
+		return (h.latencyMs + 1) * (h.outstanding + 1) / Math.max(0.01, 1 - h.errorRate);
+	}
+
+	private void update(Health h, long latencyMs, double error)
+	{
+		if(!h.sampled)
+		{
+			h.latencyMs = latencyMs;
+			h.errorRate = error;
+			h.sampled = true;
+		}
+		else
+		{
+			h.latencyMs += alpha * (latencyMs - h.latencyMs);
+			h.errorRate += alpha * (error - h.errorRate);
+		}
+	}
+}
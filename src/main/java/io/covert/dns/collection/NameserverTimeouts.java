@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Per nameserver retransmission timeouts, shared by all resolver threads in a mapper.
+ *
+ * Computed like the TCP RTO (RFC 6298) from a smoothed RTT and its mean deviation, in
+ * milliseconds and clamped to [min, max]. Each retransmission of the same request doubles the
+ * timeout, up to the max. Unless dns.collection.timeout.adaptive is on the timeout is always the
+ * max and, with dns.collection.retries at its default of 0, each query is sent once.
+ */
+public class NameserverTimeouts {
+
+	private static final double ALPHA = 1.0 / 8;
+	private static final double BETA = 1.0 / 4;
+	private static final int K = 4;
+
+	static class Estimate
+	{
+		double srtt;
+		double rttvar;
+		double rto;
+		boolean sampled = false;
+	}
+
+	final Estimate[] estimates;
+	final boolean adaptive;
+	final long minMs;
+	final long maxMs;
+	final int retries;
+
+	public NameserverTimeouts(int numNameservers, boolean adaptive, long initialMs, long minMs, long maxMs, int retries)
+	{
+		this.adaptive = adaptive;
+		this.minMs = minMs;
+		this.maxMs = maxMs;
+		this.retries = retries;
+
+		estimates = new Estimate[numNameservers];
+		for(int i = 0; i < numNameservers; ++i)
+		{
+			estimates[i] = new Estimate();
+			estimates[i].rto = adaptive ? Math.min(initialMs, maxMs) : maxMs;
+		}
+	}
+
+	public static NameserverTimeouts create(Configuration conf, int numNameservers)
+	{
+		// the old whole second setting is still honored as the upper bound
+		long maxMs = conf.getLong("dns.collection.timeout.ms", conf.getInt("dns.collection.timeout.secs", 5) * 1000L);
+
+		return new NameserverTimeouts(numNameservers,
+				conf.getBoolean("dns.collection.timeout.adaptive", false),
+				conf.getLong("dns.collection.timeout.initial.ms", 1000),
+				conf.getLong("dns.collection.timeout.min.ms", 20),
+				maxMs,
+				conf.getInt("dns.collection.retries", 0));
+	}
+
+	/**
+	 * @param attempt 0 for the first transmission, 1 for the first retransmission, etc
+	 * @return how long to wait for a response from the nameserver, in milliseconds
+	 */
+	public long getTimeoutMs(int nameserver, int attempt)
+	{
+		Estimate e = estimates[nameserver];
+		double rto;
+		synchronized (e) {
+			rto = e.rto;
+		}
+		long timeout = (long)Math.ceil(rto) << Math.min(attempt, 16);
+		return Math.max(minMs, Math.min(maxMs, timeout));
+	}
+
+	/**
+	 * Adds a round trip time sample, only use samples that unambiguously belong to one transmission.
+	 */
+	public void onSample(int nameserver, double rttMs)
+	{
+		if(!adaptive)
+			return;
+
+		Estimate e = estimates[nameserver];
+		synchronized (e) {
+			if(!e.sampled)
+			{
+				e.srtt = rttMs;
+				e.rttvar = rttMs / 2;
+				e.sampled = true;
+			}
+			else
+			{
+				e.rttvar = (1 - BETA) * e.rttvar + BETA * Math.abs(e.srtt - rttMs);
+				e.srtt = (1 - ALPHA) * e.srtt + ALPHA * rttMs;
+			}
+			// 1ms clock granularity
+			e.rto = e.srtt + Math.max(1, K * e.rttvar);
+		}
+	}
+
+	/**
+	 * Backs the timeout off after a first transmission timed out, until the next sample arrives.
+	 * Only doubles once per timeout value so a burst of losses doesn't run it up to the max.
+	 */
+	public void onTimeout(int nameserver, long timeoutMs)
+	{
+		if(!adaptive)
+			return;
+
+		Estimate e = estimates[nameserver];
+		synchronized (e) {
+			e.rto = Math.max(e.rto, Math.min(maxMs, 2.0 * timeoutMs));
+		}
+	}
+
+	public double getSmoothedRttMs(int nameserver)
+	{
+		Estimate e = estimates[nameserver];
+		synchronized (e) {
+			return e.srtt;
+		}
+	}
+
+	/**
+	 * @return the timeout when it does not adapt, and the most it adapts to
+	 */
+	public long getMaxMs() {
+		return maxMs;
+	}
+
+	public int getRetries() {
+		return retries;
+	}
+
+	/**
+	 * @return the longest a request can wait over all its transmissions
+	 */
+	public long getMaxRequestMs() {
+		return maxMs * (retries + 1);
+	}
+}
@@ -0,0 +1,593 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import io.covert.util.BoundedBuffer;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.TextParseException;
+
+/**
+ * Resolver that multiplexes many outstanding UDP queries over a few non-blocking
+ * DatagramChannels. Responses are matched to requests by DNS message ID and source
+ * address, timeouts are tracked with a {@link TimerWheel}. Timed out queries are retransmitted
+ * with a fresh ID, so a late response to an earlier attempt is simply dropped.
+ * Queries that go over TCP are handed to the {@link TcpTransport} and their answers come back
+ * through a queue that wakes up the selector.
+ */
+public class NioResolverThread extends ResolverThread {
+
+	private static final Logger LOG = Logger.getLogger(NioResolverThread.class);
+	private static final int MAX_ID = 0x10000;
+	// random picks of an ID before taking the next free one, only a nearly full channel needs more
+	private static final int MAX_ID_TRIES = 16;
+	private static final long TICK_MS = 10;
+
+	static class Pending extends TimerWheel.Timeout
+	{
+		DnsRequest request;
+		int channel;
+		int id;
+		int nameserver;
+		int attempt = 0;
+		long sentMs;
+		long sentNanos;
+		long timeoutMs;
+		long hedgeAt = 0;
+		boolean permitted = false;
+		// a hedged query has two copies in flight, each points at the other
+		Pending twin = null;
+		boolean isHedge = false;
+	}
+
+	class TcpAnswer implements TcpTransport.Callback
+	{
+		final Pending pending;
+		byte[] response = null;
+		IOException error = null;
+
+		TcpAnswer(Pending pending) {
+			this.pending = pending;
+		}
+
+		@Override
+		public void onResponse(byte[] response)
+		{
+			this.response = response;
+			tcpAnswers.add(this);
+			selector.wakeup();
+		}
+
+		@Override
+		public void onFailure(IOException e)
+		{
+			this.error = e;
+			tcpAnswers.add(this);
+			selector.wakeup();
+		}
+	}
+
+	DatagramChannel[] channels;
+	Pending[][] inFlight;
+	// read by the metrics, only ever written by this thread
+	volatile int numInFlight = 0;
+	int maxInFlight;
+	int nextChannel = 0;
+
+	Selector selector;
+	TimerWheel wheel;
+	QueryEncoder encoder;
+	ByteBuffer recvBuffer = ByteBuffer.allocate(Message.MAXLENGTH);
+	List<Pending> expired = new ArrayList<Pending>();
+	Pending unsent = null;
+	ArrayDeque<Pending> resend = new ArrayDeque<Pending>();
+	ConcurrentLinkedQueue<TcpAnswer> tcpAnswers = new ConcurrentLinkedQueue<TcpAnswer>();
+	volatile int numTcpInFlight = 0;
+
+	public NioResolverThread(
+			BoundedBuffer<DnsRequest> inQueue,
+			BoundedBuffer<DnsResponse> outQueue,
+			String[] nameservers,
+			int timeoutSecs,
+			int numChannels,
+			int maxInFlight) {
+		super(inQueue, outQueue, nameservers, timeoutSecs);
+		// leave plenty of free IDs on each channel
+		this.maxInFlight = Math.min(maxInFlight, numChannels * MAX_ID / 2);
+
+		channels = new DatagramChannel[numChannels];
+		inFlight = new Pending[numChannels][];
+		for(int i = 0; i < numChannels; ++i)
+			inFlight[i] = new Pending[MAX_ID];
+	}
+
+	@Override
+	public void run() {
+
+		long started = System.nanoTime();
+		try {
+			open();
+			loop();
+		} catch (IOException e) {
+			LOG.error("NIO resolver failed: "+e.getMessage(), e);
+		} catch (InterruptedException e) {
+			LOG.error("Interrupted, stopping resolver thread");
+		} finally {
+			close();
+			stats.totalRequestHandlingNanos += System.nanoTime() - started;
+		}
+	}
+
+	private void open() throws IOException
+	{
+		encoder = new QueryEncoder(edns);
+		selector = Selector.open();
+		wheel = new TimerWheel(1024, TICK_MS, System.currentTimeMillis());
+		for(int i = 0; i < channels.length; ++i)
+		{
+			channels[i] = DatagramChannel.open();
+			channels[i].configureBlocking(false);
+			channels[i].socket().bind(null);
+			channels[i].register(selector, SelectionKey.OP_READ, Integer.valueOf(i));
+		}
+	}
+
+	private void close()
+	{
+		try {
+			if(selector != null)
+				selector.close();
+		} catch (IOException e) {}
+
+		for(DatagramChannel channel : channels)
+		{
+			try {
+				if(channel != null)
+					channel.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	private void loop() throws IOException, InterruptedException
+	{
+		while(true)
+		{
+			boolean moreToSend = fill();
+
+			if(numInFlight == 0 && numTcpInFlight == 0 && unsent == null && resend.isEmpty())
+			{
+				// nothing outstanding, park until there is more work or the queue is closed
+				acquireConcurrency();
+				DnsRequest req = nextRequest();
+				if(req == null)
+				{
+					releaseConcurrency();
+					break;
+				}
+				unsent = prepare(req);
+				continue;
+			}
+
+			long selectStarted = System.nanoTime();
+			int ready;
+			if(moreToSend)
+				ready = selector.selectNow();
+			else
+				ready = selector.select(TICK_MS);
+
+			if(ready > 0)
+			{
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(key.isValid() && key.isReadable())
+						receive((Integer)key.attachment());
+				}
+			}
+			stats.performRequestNanos += System.nanoTime() - selectStarted;
+
+			TcpAnswer answer;
+			while((answer = tcpAnswers.poll()) != null)
+				receive(answer);
+
+			expired.clear();
+			wheel.expire(System.currentTimeMillis(), expired);
+			for(Pending p : expired)
+			{
+				if(p.hedgeAt > 0)
+				{
+					// slower than usual, keep waiting until the real deadline and maybe hedge
+					p.hedgeAt = 0;
+					wheel.schedule(p, p.sentMs + p.timeoutMs);
+					hedge(p);
+					continue;
+				}
+
+				if(rateLimiter != null)
+					rateLimiter.onTimeout(p.nameserver);
+				if(metrics != null)
+					metrics.onTimeout(p.nameserver);
+				if(nameserverSelector != null)
+					nameserverSelector.onFailure(p.nameserver, System.currentTimeMillis() - p.sentMs);
+				if(p.attempt == 0)
+					timeouts.onTimeout(p.nameserver, p.timeoutMs);
+				if(concurrencyLimiter != null)
+					concurrencyLimiter.onDrop();
+				free(p);
+
+				if(p.twin != null)
+				{
+					// the other copy is still waiting for an answer
+					p.twin.twin = null;
+					continue;
+				}
+
+				if(p.attempt < timeouts.getRetries())
+				{
+					// pick a nameserver again and queue it ahead of new work
+					p.attempt++;
+					p.nameserver = selectNameserver();
+					p.permitted = false;
+					p.isHedge = false;
+					++stats.retransmissions;
+					resend.add(p);
+				}
+				else
+				{
+					LOG.error("Timed out when resolving name: "+p.request+" at nameserver: "+nameservers[p.nameserver]+" after "+(p.attempt+1)+" attempts");
+					++stats.requestTimeouts;
+					finished();
+					retry(p.request);
+				}
+			}
+		}
+	}
+
+	// sends as many queued requests as the in flight and rate limits allow, returns true 
+	// if it stopped because the socket buffer was full
+	private boolean fill()
+	{
+		while(numInFlight + numTcpInFlight < maxInFlight)
+		{
+			Pending p = unsent;
+			unsent = null;
+			if(p == null)
+				p = resend.poll();
+
+			if(p == null)
+			{
+				// new requests need room under the concurrency limit
+				if(concurrencyLimiter != null && !concurrencyLimiter.tryAcquire())
+					return false;
+				DnsRequest req = inQueue.poll();
+				if(req == null && retryLane != null)
+					req = retryLane.poll();
+				if(req == null)
+				{
+					releaseConcurrency();
+					return false;
+				}
+				p = prepare(req);
+			}
+
+			if(!p.permitted)
+			{
+				if(rateLimiter != null && !rateLimiter.tryAcquire(p.nameserver))
+				{
+					// out of tokens, try again after the next select
+					unsent = p;
+					return false;
+				}
+				p.permitted = true;
+			}
+
+			if(!send(p))
+			{
+				unsent = p;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Pending prepare(DnsRequest req)
+	{
+		Pending p = new Pending();
+		p.request = req;
+		p.nameserver = selectNameserver();
+		return p;
+	}
+
+	private boolean send(Pending p)
+	{
+		long encodeStarted = System.nanoTime();
+
+		// a random free ID on the next channel, every attempt gets its own and none can be
+		// guessed from the last one, mostly free so this rarely takes more than one try
+		p.channel = nextChannel;
+		nextChannel = (nextChannel + 1) % channels.length;
+		Pending[] ids = inFlight[p.channel];
+		int id = random.nextInt(MAX_ID);
+		for(int tries = 1; ids[id] != null; ++tries)
+			id = tries < MAX_ID_TRIES ? random.nextInt(MAX_ID) : (id + 1) & (MAX_ID - 1);
+		p.id = id;
+
+		ByteBuffer query;
+		try {
+			query = encoder.encode(p.request, p.id);
+		} catch (TextParseException e) {
+			LOG.error("Failed to parse name: "+p.request);
+			++stats.requestParseFailures;
+			abandon(p.request);
+			finished();
+			if(nameserverSelector != null)
+				nameserverSelector.onCancel(p.nameserver);
+			return true;
+		}
+		stats.onConstruct(System.nanoTime() - encodeStarted);
+
+		if(tcp != null && tcp.isAlways())
+		{
+			sendTcp(p);
+			return true;
+		}
+
+		try {
+			if(channels[p.channel].send(query, addresses[p.nameserver]) == 0)
+				return false;
+		} catch (IOException e) {
+			LOG.error("Failed resolving name: "+p.request+" at nameserver: "+nameservers[p.nameserver]+", reason: "+e.getMessage());
+			if(nameserverSelector != null)
+				nameserverSelector.onFailure(p.nameserver, 0);
+			if(p.twin != null)
+			{
+				// the other copy is still waiting for an answer
+				p.twin.twin = null;
+				p.twin = null;
+			}
+			else
+			{
+				++stats.lookupsFailures;
+				finished();
+				retry(p.request);
+			}
+			return true;
+		}
+
+		p.sentMs = System.currentTimeMillis();
+		p.sentNanos = System.nanoTime();
+		inFlight[p.channel][p.id] = p;
+		++numInFlight;
+		p.timeoutMs = timeouts.getTimeoutMs(p.nameserver, p.attempt);
+
+		long hedgeDelay = hedgePolicy != null && !p.isHedge ? hedgePolicy.getHedgeDelayMs(p.nameserver) : -1;
+		if(hedgeDelay >= 0 && hedgeDelay < p.timeoutMs)
+		{
+			p.hedgeAt = p.sentMs + hedgeDelay;
+			wheel.schedule(p, p.hedgeAt);
+		}
+		else
+		{
+			wheel.schedule(p, p.sentMs + p.timeoutMs);
+		}
+		return true;
+	}
+
+	// sends the query last encoded for the request over TCP, the answer comes back on tcpAnswers
+	private void sendTcp(Pending p)
+	{
+		p.sentMs = System.currentTimeMillis();
+		p.sentNanos = System.nanoTime();
+		p.timeoutMs = timeouts.getTimeoutMs(p.nameserver, p.attempt);
+		try {
+			tcp.sendAsync(p.nameserver, encoder.array(), encoder.length(), p.timeoutMs, new TcpAnswer(p));
+			++numTcpInFlight;
+		} catch (IOException e) {
+			LOG.error("Failed resolving name: "+p.request+" over TCP at nameserver: "+nameservers[p.nameserver]+", reason: "+e.getMessage());
+			++stats.lookupsFailures;
+			finished();
+			if(nameserverSelector != null)
+				nameserverSelector.onFailure(p.nameserver, 0);
+			retry(p.request);
+		}
+	}
+
+	private void receive(TcpAnswer answer) throws InterruptedException
+	{
+		Pending p = answer.pending;
+		--numTcpInFlight;
+		long elapsed = System.currentTimeMillis();
+
+		if(answer.error != null)
+		{
+			if(rateLimiter != null)
+				rateLimiter.onTimeout(p.nameserver);
+			if(metrics != null)
+				metrics.onTimeout(p.nameserver);
+			if(nameserverSelector != null)
+				nameserverSelector.onFailure(p.nameserver, elapsed - p.sentMs);
+			if(answer.error instanceof SocketTimeoutException)
+			{
+				if(concurrencyLimiter != null)
+					concurrencyLimiter.onDrop();
+				LOG.error("Timed out when resolving name: "+p.request+" over TCP at nameserver: "+nameservers[p.nameserver]);
+				++stats.requestTimeouts;
+			}
+			else
+			{
+				LOG.error("Failed resolving name: "+p.request+" over TCP at nameserver: "+nameservers[p.nameserver]+", reason: "+answer.error.getMessage());
+				++stats.lookupsFailures;
+			}
+			finished();
+			retry(p.request);
+			return;
+		}
+
+		if(tcp.isAlways())
+			timeouts.onSample(p.nameserver, elapsed - p.sentMs);
+		deliver(p, answer.response, elapsed);
+		finished();
+	}
+
+	private void hedge(Pending p)
+	{
+		int nameserver = startHedge(p.nameserver);
+		if(nameserver < 0)
+			return;
+
+		Pending h = new Pending();
+		h.request = p.request;
+		h.attempt = p.attempt;
+		h.nameserver = nameserver;
+		h.permitted = true;
+		h.isHedge = true;
+		h.twin = p;
+		p.twin = h;
+
+		if(!send(h))
+		{
+			// socket buffer is full, don't bother
+			p.twin = null;
+			if(nameserverSelector != null)
+				nameserverSelector.onCancel(nameserver);
+		}
+	}
+
+	private void receive(int channel) throws IOException, InterruptedException
+	{
+		while(true)
+		{
+			recvBuffer.clear();
+			SocketAddress from = channels[channel].receive(recvBuffer);
+			if(from == null)
+				return;
+
+			recvBuffer.flip();
+			if(recvBuffer.remaining() < DnsResponse.HEADER_LENGTH)
+				continue;
+
+			int id = recvBuffer.getShort(0) & 0xFFFF;
+			Pending p = inFlight[channel][id];
+			if(p == null || !addresses[p.nameserver].equals(from))
+			{
+				// late response for a timed out request, or a response from somewhere unexpected
+				continue;
+			}
+
+			long elapsed = System.currentTimeMillis();
+			timeouts.onSample(p.nameserver, elapsed - p.sentMs);
+			if(hedgePolicy != null)
+				hedgePolicy.onSample(p.nameserver, elapsed - p.sentMs);
+			if(p.twin != null)
+			{
+				// first answer wins, forget about the other copy
+				Pending loser = p.twin;
+				wheel.cancel(loser);
+				free(loser);
+				loser.twin = null;
+				p.twin = null;
+				if(nameserverSelector != null)
+					nameserverSelector.onCancel(loser.nameserver);
+				if(p.isHedge)
+					hedgePolicy.onWin();
+			}
+			wheel.cancel(p);
+
+			if(DnsResponse.isTruncated(recvBuffer.array()))
+				++stats.truncated;
+			if(tcp != null && DnsResponse.isTruncated(recvBuffer.array()))
+			{
+				// too big for UDP, ask again over TCP without holding up the other queries
+				free(p);
+				try {
+					encoder.encode(p.request, p.id);
+				} catch (TextParseException e) {
+					// it was encoded before
+					throw new IllegalStateException(e);
+				}
+				sendTcp(p);
+				continue;
+			}
+
+			byte[] wire = new byte[recvBuffer.remaining()];
+			recvBuffer.get(wire);
+			deliver(p, wire, elapsed);
+			release(p);
+		}
+	}
+
+	private void deliver(Pending p, byte[] wire, long elapsed) throws InterruptedException
+	{
+		long receivedNanos = System.nanoTime();
+		DnsResponse response = new DnsResponse(p.request, wire);
+		response.setMetadata(p.nameserver, (receivedNanos - p.sentNanos) / 1000, p.sentMs);
+		int rcode = response.getRcode();
+		stats.onParse(System.nanoTime() - receivedNanos);
+		stats.onResponse(p.nameserver, rcode, receivedNanos - p.sentNanos, wire.length);
+		if(metrics != null)
+			metrics.onResponse(p.nameserver, receivedNanos - p.sentNanos);
+		if(rateLimiter != null)
+			rateLimiter.onResponse(p.nameserver, rcode);
+		if(nameserverSelector != null)
+			nameserverSelector.onResponse(p.nameserver, elapsed - p.sentMs, rcode);
+		if(concurrencyLimiter != null)
+			concurrencyLimiter.onSample(receivedNanos - p.sentNanos);
+		if(LOG.isDebugEnabled())
+			LOG.debug("Response for "+p.request+": "+response);
+		outQueue.put(response);
+	}
+
+	private void release(Pending p)
+	{
+		free(p);
+		finished();
+	}
+
+	// a request is done, answered or not
+	private void finished()
+	{
+		++stats.numRequests;
+		releaseConcurrency();
+	}
+
+	private void free(Pending p)
+	{
+		inFlight[p.channel][p.id] = null;
+		--numInFlight;
+	}
+
+	@Override
+	public int getInFlight() {
+		return numInFlight + numTcpInFlight;
+	}
+}
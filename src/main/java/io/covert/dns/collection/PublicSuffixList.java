@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * The rules of a public suffix list in the publicsuffix.org format: one suffix per line,
+ * "*." for any label and "!" for exceptions to those. Without rules every TLD is a suffix.
+ */
+public class PublicSuffixList {
+
+	final Set<String> rules = new HashSet<String>();
+	// the suffixes below which any label is a suffix too
+	final Set<String> wildcards = new HashSet<String>();
+	final Set<String> exceptions = new HashSet<String>();
+
+	/**
+	 * @return the list in dns.zonesort.suffixes, or one with no rules
+	 */
+	public static PublicSuffixList create(Configuration conf) throws IOException
+	{
+		PublicSuffixList list = new PublicSuffixList();
+		String file = conf.get("dns.zonesort.suffixes");
+		if(file != null)
+		{
+			Path path = new Path(file);
+			BufferedReader in = new BufferedReader(new InputStreamReader(path.getFileSystem(conf).open(path), "UTF-8"));
+			try {
+				String line;
+				while((line = in.readLine()) != null)
+					list.addRule(line);
+			} finally {
+				in.close();
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Adds a line of the list, comments and blank lines are ignored.
+	 */
+	public void addRule(String line)
+	{
+		// a rule ends at the first whitespace
+		line = line.trim();
+		int space = line.indexOf(' ');
+		if(space >= 0)
+			line = line.substring(0, space);
+		if(line.length() == 0 || line.startsWith("//"))
+			return;
+
+		line = line.toLowerCase();
+		if(line.startsWith("!"))
+			exceptions.add(line.substring(1));
+		else if(line.startsWith("*."))
+			wildcards.add(line.substring(2));
+		else
+			rules.add(line);
+	}
+
+	/**
+	 * @param name a lower case name without the trailing dot
+	 * @return the zone registered under a public suffix the name is in, e.g. example.co.uk for
+	 * www.example.co.uk, or the name itself if it is a public suffix
+	 */
+	public String getRegisteredZone(String name)
+	{
+		// the start of each candidate suffix, longest first
+		int suffix = -1;
+		for(int start = 0; start >= 0; start = nextLabel(name, start))
+		{
+			String candidate = name.substring(start);
+			if(exceptions.contains(candidate))
+			{
+				// the exception itself is registrable
+				return candidate;
+			}
+			int next = nextLabel(name, start);
+			if(rules.contains(candidate) || (next >= 0 && wildcards.contains(name.substring(next))))
+			{
+				suffix = start;
+				break;
+			}
+			if(next < 0)
+			{
+				// the default rule, the TLD
+				suffix = start;
+				break;
+			}
+		}
+
+		if(suffix <= 0)
+			return name;
+		// one label more than the suffix
+		return name.substring(name.lastIndexOf('.', suffix - 2) + 1);
+	}
+
+	private static int nextLabel(String name, int start)
+	{
+		int dot = name.indexOf('.', start);
+		return dot < 0 ? -1 : dot + 1;
+	}
+}
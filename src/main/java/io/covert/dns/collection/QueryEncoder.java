@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.nio.ByteBuffer;
+
+import org.xbill.DNS.DNSOutput;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.TextParseException;
+
+/**
+ * Writes DNS queries straight into a reused buffer, without building dnsjava Names, Records
+ * or Messages. The header is written once, when the same name is encoded again only the ID,
+ * type and class are patched. With {@link EdnsOptions} every query also carries the same
+ * OPT record. Not thread safe, use one per thread.
+ */
+public class QueryEncoder {
+
+	private static final int HEADER_LENGTH = 12;
+	private static final int MAX_NAME_LENGTH = 255;
+	private static final int MAX_LABEL_LENGTH = 63;
+
+	final ByteBuffer buffer;
+	final byte[] array;
+	final byte[] opt;
+
+	// the name currently in the buffer, compared by reference
+	String lastSubdomain = null;
+	String lastDomain = null;
+	int nameEnd = 0;
+
+	public QueryEncoder()
+	{
+		this(null);
+	}
+
+	public QueryEncoder(EdnsOptions edns)
+	{
+		opt = edns != null ? edns.toWire() : new byte[0];
+		array = new byte[HEADER_LENGTH + MAX_NAME_LENGTH + 4 + opt.length];
+		buffer = ByteBuffer.wrap(array);
+
+		// ID 0, recursion desired, one question and the OPT record if any
+		array[2] = 0x01;
+		array[5] = 1;
+		if(edns != null)
+			array[11] = 1;
+	}
+
+	/**
+	 * Recursion is desired by default, queries to authoritative servers go without.
+	 */
+	public void setRecursionDesired(boolean recursionDesired)
+	{
+		array[2] = (byte)(recursionDesired ? 0x01 : 0);
+	}
+
+	/**
+	 * Changes the ID of the last encoded query.
+	 */
+	public void setId(int id)
+	{
+		array[0] = (byte)(id >>> 8);
+		array[1] = (byte)id;
+	}
+
+	/**
+	 * Encodes a query for the request, the result stays valid until the next call.
+	 *
+	 * @return the buffer, flipped so it holds exactly the query
+	 */
+	public ByteBuffer encode(DnsRequest request, int id) throws TextParseException
+	{
+		if(request.subdomain != lastSubdomain || request.domain != lastDomain)
+		{
+			// mark it stale first, in case the name is bad
+			lastSubdomain = null;
+			lastDomain = null;
+
+			int pos = putLabels(request.subdomain, HEADER_LENGTH, request);
+			if(pos > 0)
+				pos = putLabels(request.domain, pos, request);
+			if(pos > 0)
+				array[pos++] = 0;
+			else
+				pos = putName(request);
+
+			nameEnd = pos;
+			System.arraycopy(opt, 0, array, nameEnd + 4, opt.length);
+			lastSubdomain = request.subdomain;
+			lastDomain = request.domain;
+		}
+
+		array[0] = (byte)(id >>> 8);
+		array[1] = (byte)id;
+		array[nameEnd] = (byte)(request.requestType >>> 8);
+		array[nameEnd + 1] = (byte)request.requestType;
+		array[nameEnd + 2] = (byte)(request.dclass >>> 8);
+		array[nameEnd + 3] = (byte)request.dclass;
+
+		buffer.clear();
+		buffer.limit(length());
+		return buffer;
+	}
+
+	/**
+	 * @return the length of the last encoded query
+	 */
+	public int length() {
+		return nameEnd + 4 + opt.length;
+	}
+
+	public byte[] array() {
+		return array;
+	}
+
+	// returns -1 if the labels need more than the simple encoding
+	private int putLabels(String labels, int pos, DnsRequest request) throws TextParseException
+	{
+		int n = labels.length();
+		int start = 0;
+		while(start < n)
+		{
+			int end = labels.indexOf('.', start);
+			if(end < 0)
+				end = n;
+
+			int len = end - start;
+			if(len == 0 || len > MAX_LABEL_LENGTH)
+				throw new TextParseException("'"+request.getName()+"': bad label length "+len);
+			if(pos + 1 + len + 1 > HEADER_LENGTH + MAX_NAME_LENGTH)
+				throw new TextParseException("'"+request.getName()+"': name too long");
+
+			array[pos++] = (byte)len;
+			for(int i = start; i < end; ++i)
+			{
+				char c = labels.charAt(i);
+				if(c == '\\' || c > 0x7F)
+					return -1;
+				array[pos++] = (byte)c;
+			}
+			start = end + 1;
+		}
+		return pos;
+	}
+
+	private int putName(DnsRequest request) throws TextParseException
+	{
+		DNSOutput out = new DNSOutput();
+		Name.fromString(request.getName()).toWire(out, null);
+		byte[] wire = out.toByteArray();
+		System.arraycopy(wire, 0, array, HEADER_LENGTH, wire.length);
+		return HEADER_LENGTH + wire.length;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.util.Arrays;
+
+/**
+ * Counters and latency histograms kept while resolving requests, all times in nanoseconds. 
+ * Not thread safe, each instance is updated by one thread at a time and instances are merged 
+ * with {@link #add(ResolverStats)} at the end.
+ */
+public class ResolverStats {
+
+	// by the 4 bit header rcode
+	long[] rcodes = new long[16];
+
+	long constructMessageNanos = 0;
+	long performRequestNanos = 0;
+	long parseResponseNanos = 0;
+	long totalRequestHandlingNanos = 0;
+
+	long numRequests = 0;
+	long lookupsFailures = 0;
+	long requestTimeouts = 0;
+	long requestParseFailures = 0;
+	long retransmissions = 0;
+	long truncated = 0;
+	long responseBytes = 0;
+
+	final LatencyHistogram construct = new LatencyHistogram();
+	final LatencyHistogram parse = new LatencyHistogram();
+	// from sending a query to its answer, by nameserver and by rcode, created as needed
+	LatencyHistogram[] sendByNameserver = new LatencyHistogram[0];
+	final LatencyHistogram[] sendByRcode = new LatencyHistogram[16];
+
+	void onConstruct(long nanos)
+	{
+		constructMessageNanos += nanos;
+		construct.record(nanos);
+	}
+
+	void onParse(long nanos)
+	{
+		parseResponseNanos += nanos;
+		parse.record(nanos);
+	}
+
+	void onResponse(int nameserver, int rcode, long nanos, int bytes)
+	{
+		rcodes[rcode]++;
+		responseBytes += bytes;
+		// -1 when no configured nameserver answered, i.e. iterative resolution
+		if(nameserver >= 0)
+			getSend(nameserver).record(nanos);
+		getSendByRcode(rcode).record(nanos);
+	}
+
+	LatencyHistogram getSend(int nameserver)
+	{
+		if(nameserver >= sendByNameserver.length)
+			sendByNameserver = Arrays.copyOf(sendByNameserver, nameserver + 1);
+		if(sendByNameserver[nameserver] == null)
+			sendByNameserver[nameserver] = new LatencyHistogram();
+		return sendByNameserver[nameserver];
+	}
+
+	LatencyHistogram getSendByRcode(int rcode)
+	{
+		if(sendByRcode[rcode] == null)
+			sendByRcode[rcode] = new LatencyHistogram();
+		return sendByRcode[rcode];
+	}
+
+	/**
+	 * @return the number of responses
+	 */
+	public long getResponses()
+	{
+		long responses = 0;
+		for(long count : rcodes)
+			responses += count;
+		return responses;
+	}
+
+	public void add(ResolverStats other)
+	{
+		for(int i = 0; i < rcodes.length; ++i)
+			rcodes[i] += other.rcodes[i];
+
+		constructMessageNanos += other.constructMessageNanos;
+		performRequestNanos += other.performRequestNanos;
+		parseResponseNanos += other.parseResponseNanos;
+		totalRequestHandlingNanos += other.totalRequestHandlingNanos;
+
+		numRequests += other.numRequests;
+		lookupsFailures += other.lookupsFailures;
+		requestTimeouts += other.requestTimeouts;
+		requestParseFailures += other.requestParseFailures;
+		retransmissions += other.retransmissions;
+		truncated += other.truncated;
+		responseBytes += other.responseBytes;
+
+		construct.add(other.construct);
+		parse.add(other.parse);
+		for(int i = 0; i < other.sendByNameserver.length; ++i)
+		{
+			if(other.sendByNameserver[i] != null)
+				getSend(i).add(other.sendByNameserver[i]);
+		}
+		for(int i = 0; i < other.sendByRcode.length; ++i)
+		{
+			if(other.sendByRcode[i] != null)
+				getSendByRcode(i).add(other.sendByRcode[i]);
+		}
+	}
+}
@@ -16,27 +16,23 @@
  */
 package io.covert.dns.collection;
 
+import io.covert.util.BoundedBuffer;
 import io.covert.util.Pair;
-import io.covert.util.Utils;
 
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.NoSuchElementException;
+import java.util.Arrays;
 import java.util.Random;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.collections.Bag;
-import org.apache.commons.collections.bag.HashBag;
-import org.apache.hadoop.io.Text;
 import org.apache.log4j.Logger;
 import org.xbill.DNS.DClass;
 import org.xbill.DNS.Message;
-import org.xbill.DNS.Name;
-import org.xbill.DNS.Rcode;
-import org.xbill.DNS.Record;
-import org.xbill.DNS.Resolver;
 import org.xbill.DNS.SimpleResolver;
 import org.xbill.DNS.TextParseException;
 import org.xbill.DNS.Type;
@@ -44,186 +40,597 @@ import org.xbill.DNS.Type;
 public class ResolverThread extends Thread {
 
 	private static final Logger LOG = Logger.getLogger(ResolverThread.class);
-	volatile boolean keepRunning = true;
+	private static final long RETRY_POLL_MS = 100;
 
 	Random random = new Random();
-	ConcurrentLinkedQueue<DnsRequest> inQueue;
-	AtomicLong inQueueSize;
-	ConcurrentLinkedQueue<Pair<Record, Message>> outQueue;
-	Resolver[] resolvers;
+	BoundedBuffer<DnsRequest> inQueue;
+	BoundedBuffer<DnsResponse> outQueue;
 	String[] nameservers;
-	Bag rcodes = new HashBag();
-	
-	long constructMessageMS = 0;
-	long performRequestMS = 0;
-	long parseResponseMS = 0;
-	long totalRequestHandlingMS = 0;
-	
-	long numRequests = 0;
-	long lookupsFailures = 0;
-	long requestTimeouts = 0;
-	long requestParseFailures = 0;
+	InetSocketAddress[] addresses;
+	Session session = null;
+	ResolverStats stats = new ResolverStats();
+	NameserverRateLimiter rateLimiter = null;
+	NameserverSelector nameserverSelector = null;
+	NameserverTimeouts timeouts;
+	RetryLane retryLane = null;
+	HedgePolicy hedgePolicy = null;
+	TcpTransport tcp = null;
+	EdnsOptions edns = null;
+	ConcurrencyLimiter concurrencyLimiter = null;
+	CollectionMetrics metrics = null;
+	volatile boolean busy = false;
 	
 	public ResolverThread(
-			ConcurrentLinkedQueue<DnsRequest> inQueue,
-			AtomicLong inQueueSize,
-			ConcurrentLinkedQueue<Pair<Record, Message>> outQueue, 
+			BoundedBuffer<DnsRequest> inQueue,
+			BoundedBuffer<DnsResponse> outQueue, 
 			String[] nameservers,
 			int timeoutSecs) {
 		super();
 		this.inQueue = inQueue;
-		this.inQueueSize = inQueueSize;
 		this.outQueue = outQueue;
 		this.nameservers = nameservers;
+		this.addresses = getAddresses(nameservers);
 		
-		resolvers = new Resolver[nameservers.length];
-		for(int i = 0 ; i < resolvers.length; ++i)
+		// fixed timeout and no retransmissions unless adaptive timeouts are set
+		timeouts = new NameserverTimeouts(nameservers.length, false, 0, 0, timeoutSecs * 1000L, 0);
+	}
+
+	static InetSocketAddress[] getAddresses(String[] nameservers)
+	{
+		InetSocketAddress[] addresses = new InetSocketAddress[nameservers.length];
+		for(int i = 0 ; i < addresses.length; ++i)
 		{
 			try {
-				resolvers[i] = new SimpleResolver(nameservers[i]);
-				resolvers[i].setTimeout(timeoutSecs);
+				addresses[i] = new InetSocketAddress(InetAddress.getByName(nameservers[i]), SimpleResolver.DEFAULT_PORT);
 			} catch (UnknownHostException e) {
 				throw new RuntimeException("Could not initial resolver for host="+nameservers[i]);
 			}
 		}
+		return addresses;
 	}
-
+	
 	@Override
 	public void run() {
 	
-		while(keepRunning || !inQueue.isEmpty())
-		{
-			try {
-				DnsRequest req = inQueue.remove();
-				inQueueSize.decrementAndGet();
-				long elapsed = System.currentTimeMillis();
-				Pair<Record, Message> resp = process(req);
-				elapsed = System.currentTimeMillis() - elapsed;
-				totalRequestHandlingMS += elapsed;
-				numRequests++;
+		try {
+			// parks until a request arrives and returns null once the queue 
+			// has been closed and drained and there is nothing left to retry
+			DnsRequest req;
+			while((req = nextRequest()) != null)
+			{
+				long started = System.nanoTime();
+				DnsResponse resp;
+				acquireConcurrency();
+				busy = true;
+				try {
+					resp = process(req, stats);
+				} finally {
+					busy = false;
+					releaseConcurrency();
+				}
+				stats.totalRequestHandlingNanos += System.nanoTime() - started;
+				stats.numRequests++;
 				
 				if(resp != null)
-					outQueue.add(resp);
-				
-			} catch (NoSuchElementException e) {
-				Utils.sleep(100);
+					outQueue.put(resp);
 			}
+		} catch (InterruptedException e) {
+			LOG.error("Interrupted, stopping resolver thread");
+		} finally {
+			if(session != null)
+				session.close();
 		}
 	}
 	
-	private Pair<Record, Message> process(DnsRequest req)
+	/**
+	 * Fresh requests come first, requests in the retry lane are only taken when there is no fresh work.
+	 * 
+	 * @return the next request, or null once the in queue is drained and there is nothing left to retry
+	 */
+	protected DnsRequest nextRequest() throws InterruptedException
 	{
-		Record requestRecord = null;
-		Pair<Record, Message> result = null;
+		if(retryLane == null)
+			return inQueue.take();
 		
-		// pick a random nameserver
-		int index = random.nextInt(resolvers.length);
-		String nameserver = nameservers[index];
+		while(true)
+		{
+			DnsRequest req = inQueue.poll();
+			if(req == null)
+				req = retryLane.poll();
+			if(req != null)
+				return req;
+			
+			if(inQueue.isDrained())
+			{
+				if(retryLane.isEmpty() && !hasOutstanding())
+					return null;
+				// only while shutting down, other threads may still add retries or finish the last ones
+				req = retryLane.poll(RETRY_POLL_MS, TimeUnit.MILLISECONDS);
+			}
+			else
+			{
+				// parks until fresh work comes in or the next retry is due, a retry added 
+				// meanwhile wakes it up to wait for that one instead
+				req = inQueue.poll(retryLane.getDelayMs(), TimeUnit.MILLISECONDS);
+			}
+			
+			if(req != null)
+				return req;
+		}
+	}
+	
+	/**
+	 * @return true if requests handed out by {@link #nextRequest()} are still being resolved and may still fail
+	 */
+	protected boolean hasOutstanding()
+	{
+		return false;
+	}
+	
+	protected void acquireConcurrency() throws InterruptedException
+	{
+		if(concurrencyLimiter != null)
+			concurrencyLimiter.acquire();
+	}
+	
+	protected void releaseConcurrency()
+	{
+		if(concurrencyLimiter != null)
+			concurrencyLimiter.release();
+	}
+	
+	protected void retry(DnsRequest req)
+	{
+		if(retryLane != null)
+		{
+			retryLane.add(req);
+			inQueue.wakeUp();
+		}
+		else
+			abandon(req);
+	}
+	
+	/**
+	 * Called for requests that will never be answered.
+	 */
+	protected void abandon(DnsRequest req)
+	{
+		if(req.group != null)
+			req.group.fail();
+	}
+	
+	protected DnsResponse process(DnsRequest req, ResolverStats stats) throws InterruptedException
+	{
+		DnsResponse result = null;
+		Session session = openSession();
+		try {
+			long started = System.nanoTime();
+			try {
+				session.encoder.encode(req, random.nextInt(0x10000));
+			} catch (TextParseException e) {
+				LOG.error("Failed to parse name: "+req);
+				++stats.requestParseFailures;
+				abandon(req);
+				return null;
+			}
+			stats.onConstruct(System.nanoTime() - started);
+			
+			result = process(req, session, stats);
+		} finally {
+			closeSession(session);
+		}
+		return result;
+	}
+	
+	/**
+	 * Resolves the query encoded in the session, retransmitting it as configured.
+	 * 
+	 * @return the response, or null if there is none
+	 */
+	protected DnsResponse process(DnsRequest req, Session session, ResolverStats stats) throws InterruptedException
+	{
+		DnsResponse result = null;
+		long elapsed;
 		
-		long elapsed = System.currentTimeMillis();
-		Message request;
+		// lost queries are retransmitted, each attempt picks a nameserver and backs off its timeout
+		int retries = timeouts.getRetries();
+		for(int attempt = 0; attempt <= retries && result == null; ++attempt)
+		{
+			int index = selectNameserver();
+			long timeoutMs = timeouts.getTimeoutMs(index, attempt);
+			
+			if(rateLimiter != null)
+				rateLimiter.acquire(index);
+			
+			if(attempt > 0)
+			{
+				// a fresh ID, so a late response to an earlier attempt is dropped rather than 
+				// timed from this one (Karn's ambiguity)
+				int id = DnsResponse.getId(session.encoder.array());
+				session.encoder.setId((id + 1 + random.nextInt(0xFFFF)) & 0xFFFF);
+				++stats.retransmissions;
+			}
+			
+			elapsed = System.currentTimeMillis();
+			long sentNanos = System.nanoTime();
+			session.nameserver = index;
+			try {
+				Pair<Integer, byte[]> answer = send(session, stats, index, timeoutMs);
+				long receivedNanos = System.nanoTime();
+				index = answer.getKey();
+				result = new DnsResponse(req, answer.getValue());
+				result.setMetadata(index, (receivedNanos - sentNanos) / 1000, elapsed);
+				
+				int rcode = result.getRcode();
+				stats.onParse(System.nanoTime() - receivedNanos);
+				stats.onResponse(index, rcode, receivedNanos - sentNanos, result.getWire().length);
+				if(metrics != null)
+					metrics.onResponse(index, receivedNanos - sentNanos);
+				if(rateLimiter != null)
+					rateLimiter.onResponse(index, rcode);
+				if(nameserverSelector != null)
+					nameserverSelector.onResponse(index, System.currentTimeMillis() - elapsed, rcode);
+				if(concurrencyLimiter != null)
+					concurrencyLimiter.onSample(receivedNanos - sentNanos);
+				if(LOG.isDebugEnabled())
+					LOG.debug("Response for "+req+": "+result);
+			}
+			catch(SocketTimeoutException e)
+			{
+				// a hedge that answered first owns the query from then on
+				index = session.nameserver;
+				if(attempt == 0)
+					timeouts.onTimeout(index, timeoutMs);
+				if(rateLimiter != null)
+					rateLimiter.onTimeout(index);
+				if(metrics != null)
+					metrics.onTimeout(index);
+				if(nameserverSelector != null)
+					nameserverSelector.onFailure(index, System.currentTimeMillis() - elapsed);
+				if(concurrencyLimiter != null)
+					concurrencyLimiter.onDrop();
+				
+				if(attempt == retries)
+				{
+					LOG.error("Timed out when resolving name: "+req+" at nameserver: "+nameservers[index]+" after "+(attempt+1)+" attempts, reason: "+e.getMessage());
+					++stats.requestTimeouts;
+					retry(req);
+				}
+			}
+			catch (IOException e) {
+				index = session.nameserver;
+				LOG.error("Failed resolving name: "+req+" at nameserver: "+nameservers[index]+", reason: "+e.getMessage());
+				++stats.lookupsFailures;
+				if(nameserverSelector != null)
+					nameserverSelector.onFailure(index, System.currentTimeMillis() - elapsed);
+				retry(req);
+				attempt = retries;
+			}
+			stats.performRequestNanos += System.nanoTime() - sentNanos;
+		}
 		
+		return result;
+	}
+	
+	/**
+	 * Sends the query over UDP. With hedging on, it also goes to a second nameserver if the 
+	 * first one has not answered within its hedge delay, and the first answer wins.
+	 * Truncated answers are asked for again over TCP, unless TCP is off.
+	 * 
+	 * @return the index of the nameserver that answered and the response as received
+	 */
+	protected Pair<Integer, byte[]> send(Session session, ResolverStats stats, int index, long timeoutMs) throws IOException, InterruptedException
+	{
+		if(tcp != null && tcp.isAlways())
+		{
+			long sentMs = System.currentTimeMillis();
+			byte[] response = tcp.send(index, session.encoder.array(), session.encoder.length(), timeoutMs);
+			timeouts.onSample(index, System.currentTimeMillis() - sentMs);
+			return new Pair<Integer, byte[]>(index, response);
+		}
+		
+		DatagramSocket socket = session.socket();
+		byte[] buf = session.buffer;
+		DatagramPacket packet = session.packet;
+		int hedge = -1;
+		long hedgeSentMs = 0;
 		try {
-			requestRecord = Record.newRecord(Name.fromString(req.getName()), req.getRequestType(), req.getDclass());
-			request = Message.newQuery(requestRecord);
+			int id = DnsResponse.getId(session.encoder.array());
 			
-		} catch (TextParseException e) {
-			LOG.error("Failed to parse name: "+req);
-			++requestParseFailures;
-			return null;
+			long sentMs = System.currentTimeMillis();
+			long deadline = sentMs + timeoutMs;
+			long hedgeDelay = hedgePolicy != null ? hedgePolicy.getHedgeDelayMs(index) : -1;
+			long hedgeAt = hedgeDelay < 0 ? deadline : sentMs + hedgeDelay;
+			session.send(addresses[index]);
+			
+			while(true)
+			{
+				long now = System.currentTimeMillis();
+				if(now >= deadline)
+					throw new SocketTimeoutException("No response within "+timeoutMs+" ms");
+				
+				if(now >= hedgeAt)
+				{
+					// only ever one hedge per query
+					hedgeAt = deadline;
+					hedge = startHedge(index);
+					if(hedge >= 0)
+					{
+						hedgeSentMs = now;
+						session.send(addresses[hedge]);
+					}
+					continue;
+				}
+				
+				socket.setSoTimeout((int)Math.max(1, Math.min(hedgeAt, deadline) - now));
+				try {
+					packet.setLength(buf.length);
+					socket.receive(packet);
+				} catch (SocketTimeoutException e) {
+					continue;
+				}
+				
+				int from;
+				if(session.isFrom(addresses[index]))
+					from = index;
+				else if(hedge >= 0 && session.isFrom(addresses[hedge]))
+					from = hedge;
+				else
+					continue;
+				
+				// late answers to earlier queries on this socket have another ID, anything 
+				// shorter than a header is treated as lost
+				if(packet.getLength() < DnsResponse.HEADER_LENGTH || DnsResponse.getId(buf) != id)
+					continue;
+				
+				long latency = System.currentTimeMillis() - (from == index ? sentMs : hedgeSentMs);
+				timeouts.onSample(from, latency);
+				if(hedgePolicy != null)
+				{
+					hedgePolicy.onSample(from, latency);
+					if(from != index)
+						hedgePolicy.onWin();
+				}
+				
+				int loser = from == index ? hedge : index;
+				hedge = -1;
+				session.nameserver = from;
+				if(loser >= 0 && nameserverSelector != null)
+					nameserverSelector.onCancel(loser);
+				
+				if(DnsResponse.isTruncated(buf))
+					++stats.truncated;
+				if(tcp != null && DnsResponse.isTruncated(buf))
+				{
+					// too big for UDP, ask again over TCP
+					byte[] response = tcp.send(from, session.encoder.array(), session.encoder.length(), Math.max(1, deadline - System.currentTimeMillis()));
+					return new Pair<Integer, byte[]>(from, response);
+				}
+				return new Pair<Integer, byte[]>(from, Arrays.copyOf(buf, packet.getLength()));
+			}
+		} finally {
+			if(hedge >= 0)
+			{
+				// the hedge did not answer either
+				if(rateLimiter != null)
+					rateLimiter.onTimeout(hedge);
+				if(nameserverSelector != null)
+					nameserverSelector.onFailure(hedge, System.currentTimeMillis() - hedgeSentMs);
+			}
 		}
-		elapsed = System.currentTimeMillis() - elapsed;
-		constructMessageMS += elapsed;
+	}
+	
+	/**
+	 * @return the nameserver to send a hedge to, or -1 if the budget or rate limit does not allow one
+	 */
+	protected int startHedge(int index)
+	{
+		if(!hedgePolicy.tryHedge())
+			return -1;
 		
-		elapsed = System.currentTimeMillis();
-		Message response = null;
-		try {
-			response = resolvers[index].send(request);
-			rcodes.add(Rcode.string(response.getRcode()));
-			result = new Pair<Record, Message>(requestRecord, response);
+		int hedge;
+		if(nameserverSelector != null)
+			hedge = nameserverSelector.selectOther(index);
+		else
+			hedge = (index + 1 + random.nextInt(nameservers.length - 1)) % nameservers.length;
+		
+		if(rateLimiter != null && !rateLimiter.tryAcquire(hedge))
+		{
+			if(nameserverSelector != null)
+				nameserverSelector.onCancel(hedge);
+			return -1;
 		}
-		catch(SocketTimeoutException e)
+		return hedge;
+	}
+	
+	protected Session openSession()
+	{
+		if(session == null)
+			session = new Session(edns);
+		return session;
+	}
+	
+	protected void closeSession(Session session)
+	{
+		// kept for the next request
+	}
+	
+	/**
+	 * Everything needed to encode, send and receive queries, reused between requests.
+	 */
+	static class Session
+	{
+		final QueryEncoder encoder;
+		final byte[] buffer = new byte[Message.MAXLENGTH];
+		final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		final DatagramPacket sendPacket;
+		DatagramSocket socket = null;
+		// the nameserver the selector counts the query as outstanding at
+		int nameserver = -1;
+		
+		Session(EdnsOptions edns)
 		{
-			LOG.error("Timed out when resolving name: "+req+" at nameserver: "+nameserver+", reason: "+e.getMessage());
-			++requestTimeouts;
+			encoder = new QueryEncoder(edns);
+			sendPacket = new DatagramPacket(encoder.array(), 0);
 		}
-		catch (IOException e) {
-			LOG.error("Failed resolving name: "+req+" at nameserver: "+nameserver+", reason: "+e.getMessage());
-			++lookupsFailures;
+		
+		DatagramSocket socket() throws IOException
+		{
+			if(socket == null)
+				socket = new DatagramSocket();
+			return socket;
 		}
-		elapsed = System.currentTimeMillis() - elapsed;
-		performRequestMS += elapsed;
 		
-		return result;
+		void send(InetSocketAddress to) throws IOException
+		{
+			send(encoder.array(), encoder.length(), to);
+		}
+		
+		void send(byte[] query, int length, InetSocketAddress to) throws IOException
+		{
+			sendPacket.setData(query, 0, length);
+			sendPacket.setSocketAddress(to);
+			socket().send(sendPacket);
+		}
+		
+		boolean isFrom(InetSocketAddress from)
+		{
+			return packet.getPort() == from.getPort() && packet.getAddress().equals(from.getAddress());
+		}
+		
+		void close()
+		{
+			if(socket != null)
+				socket.close();
+			socket = null;
+		}
 	}
 	
-	public void stopRunning()
+	protected int selectNameserver()
 	{
-		this.keepRunning = false;
+		if(nameserverSelector != null)
+			return nameserverSelector.select();
+		
+		// pick a random nameserver
+		return random.nextInt(nameservers.length);
 	}
-
+	
 	public long getConstructMessageMS() {
-		return constructMessageMS;
+		return TimeUnit.NANOSECONDS.toMillis(stats.constructMessageNanos);
 	}
 
 	public long getPerformRequestMS() {
-		return performRequestMS;
+		return TimeUnit.NANOSECONDS.toMillis(stats.performRequestNanos);
 	}
 
 	public long getParseResponseMS() {
-		return parseResponseMS;
+		return TimeUnit.NANOSECONDS.toMillis(stats.parseResponseNanos);
 	}
 
 	public long getTotalRequestHandlingMS() {
-		return totalRequestHandlingMS;
+		return TimeUnit.NANOSECONDS.toMillis(stats.totalRequestHandlingNanos);
 	}
 	
 	public long getNumRequests() {
-		return numRequests;
+		return stats.numRequests;
 	}
 	
 	public long getLookupsFailures() {
-		return lookupsFailures;
+		return stats.lookupsFailures;
 	}
 	
 	public long getRequestParseFailures() {
-		return requestParseFailures;
+		return stats.requestParseFailures;
 	}
 	
 	public long getRequestTimeouts() {
-		return requestTimeouts;
+		return stats.requestTimeouts;
+	}
+	
+	/**
+	 * @return the number of responses by rcode
+	 */
+	public long[] getRcodes() {
+		return stats.rcodes;
+	}
+	
+	public ResolverStats getStats() {
+		return stats;
 	}
 	
-	public Bag getRcodes() {
-		return rcodes;
+	public void setRateLimiter(NameserverRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+	
+	public void setNameserverSelector(NameserverSelector nameserverSelector) {
+		this.nameserverSelector = nameserverSelector;
+	}
+	
+	public void setTimeouts(NameserverTimeouts timeouts) {
+		this.timeouts = timeouts;
+	}
+	
+	public void setRetryLane(RetryLane retryLane) {
+		this.retryLane = retryLane;
+	}
+	
+	public void setHedgePolicy(HedgePolicy hedgePolicy) {
+		this.hedgePolicy = hedgePolicy;
+	}
+	
+	public void setTcpTransport(TcpTransport tcp) {
+		this.tcp = tcp;
+	}
+	
+	public void setEdns(EdnsOptions edns) {
+		this.edns = edns;
+	}
+	
+	public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+		this.concurrencyLimiter = concurrencyLimiter;
+	}
+	
+	public void setMetrics(CollectionMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * @return the requests this thread is resolving right now
+	 */
+	public int getInFlight() {
+		return busy ? 1 : 0;
+	}
+	
+	public long getTruncated() {
+		return stats.truncated;
+	}
+	
+	public long getResponseBytes() {
+		return stats.responseBytes;
+	}
+	
+	public long getRetransmissions() {
+		return stats.retransmissions;
 	}
 	
 	public static void main(String[] args) throws Exception {
 		
-		ConcurrentLinkedQueue<DnsRequest> inQueue = new ConcurrentLinkedQueue<DnsRequest>();
-		AtomicLong inQueueSize = new AtomicLong(0);
-		ConcurrentLinkedQueue<Pair<Record, Message>> outQueue = new ConcurrentLinkedQueue<Pair<Record, Message>>();
+		BoundedBuffer<DnsRequest> inQueue = new BoundedBuffer<DnsRequest>(10);
+		BoundedBuffer<DnsResponse> outQueue = new BoundedBuffer<DnsResponse>(10);
 		String[] nameservers = new String[]{"8.8.8.8"};
 		
-		inQueue.add(new DnsRequest("www6.google.com.", Type.AAAA, DClass.IN));
-		inQueue.add(new DnsRequest("ipv6.google.com.", Type.AAAA, DClass.IN));
-		inQueue.add(new DnsRequest("gmail.com.", Type.AAAA, DClass.IN));
-		inQueueSize.incrementAndGet();
-		inQueueSize.incrementAndGet();
-		inQueueSize.incrementAndGet();
+		inQueue.put(new DnsRequest("www6.google.com.", Type.AAAA, DClass.IN));
+		inQueue.put(new DnsRequest("ipv6.google.com.", Type.AAAA, DClass.IN));
+		inQueue.put(new DnsRequest("gmail.com.", Type.AAAA, DClass.IN));
+		inQueue.close();
 		
-		ResolverThread res = new ResolverThread(inQueue, inQueueSize, outQueue, nameservers, 5);
+		ResolverThread res = new ResolverThread(inQueue, outQueue, nameservers, 5);
 		res.start();
-		res.stopRunning();
 		res.join();
+		outQueue.close();
 		
-		Pair<Record, Message> result = outQueue.remove();
-		System.out.println(result);
-		
-		result = outQueue.remove();
-		System.out.println(result);
-		
-		result = outQueue.remove();
-		System.out.println(result);
+		DnsResponse result;
+		while((result = outQueue.take()) != null)
+			System.out.println(result);
 	}
 }
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+/**
+ * How a response was collected, appended to it in the output with
+ * -D dns.collection.output.metadata=true. Parsers read a message by its section counts and
+ * ignore what follows, so the values still parse as they are.
+ *
+ * The trailer is 16 bytes, big endian: the index of the nameserver in
+ * dns.collection.nameservers (-1 if unknown), the RTT in microseconds, the time the query was
+ * sent in ms since the epoch and a 2 byte marker.
+ */
+public class ResponseMetadata {
+
+	public static final int LENGTH = 16;
+	private static final int MARKER = 0xD5A1;
+
+	final int nameserver;
+	final long rttMicros;
+	final long queryTimeMs;
+
+	public ResponseMetadata(int nameserver, long rttMicros, long queryTimeMs)
+	{
+		this.nameserver = nameserver;
+		this.rttMicros = rttMicros;
+		this.queryTimeMs = queryTimeMs;
+	}
+
+	/**
+	 * Writes the trailer for the response, into must have {@link #LENGTH} bytes from offset.
+	 *
+	 * @return the offset after it
+	 */
+	public static int write(DnsResponse response, byte[] into, int offset)
+	{
+		offset = put(into, offset, response.getNameserver(), 2);
+		// an unsigned int of microseconds is over an hour
+		offset = put(into, offset, Math.min(Math.max(response.getRttMicros(), 0), 0xFFFFFFFFL), 4);
+		offset = put(into, offset, response.getQueryTimeMs(), 8);
+		return put(into, offset, MARKER, 2);
+	}
+
+	/**
+	 * @param value an output value, e.g. from BytesWritable.getBytes()
+	 * @param length the length of the value
+	 * @return the metadata at the end of the value, or null if there is none
+	 */
+	public static ResponseMetadata read(byte[] value, int length)
+	{
+		if(length < DnsResponse.HEADER_LENGTH + LENGTH || get(value, length - 2, 2) != MARKER)
+			return null;
+		int offset = length - LENGTH;
+		return new ResponseMetadata((short)get(value, offset, 2), get(value, offset + 2, 4), get(value, offset + 6, 8));
+	}
+
+	private static int put(byte[] into, int offset, long value, int bytes)
+	{
+		for(int i = bytes - 1; i >= 0; --i)
+			into[offset++] = (byte)(value >>> (8 * i));
+		return offset;
+	}
+
+	private static long get(byte[] from, int offset, int bytes)
+	{
+		long value = 0;
+		for(int i = 0; i < bytes; ++i)
+			value = (value << 8) | (from[offset + i] & 0xFF);
+		return value;
+	}
+
+	public int getNameserver() {
+		return nameserver;
+	}
+
+	public long getRttMicros() {
+		return rttMicros;
+	}
+
+	public long getQueryTimeMs() {
+		return queryTimeMs;
+	}
+
+	@Override
+	public String toString() {
+		return "[nameserver="+nameserver+", rttMicros="+rttMicros+", queryTimeMs="+queryTimeMs+"]";
+	}
+}
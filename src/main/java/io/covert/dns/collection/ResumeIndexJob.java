@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import io.covert.util.BloomFilter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Indexes the requests earlier collection runs answered, from the "name TAB class TAB type"
+ * keys of their output, into a Bloom filter. {@link CollectionJob} runs it for
+ * -D dns.collection.resume=dir1,dir2 and skips what it finds.
+ *
+ * A false positive skips a request that was never collected, with the probability set by
+ * dns.collection.resume.fpp. Each reducer writes the filter of its partition of the keys, sized
+ * for the keys it was given, and the collection mappers load all of them: -ln(fpp) / ln(2)^2 
+ * bits per key, about 3 bytes for the default of 0.00001, of direct memory.
+ */
+public class ResumeIndexJob extends Configured implements Tool  {
+
+	public static final String COUNTER_GROUP = ResumeIndexJob.class.getSimpleName();
+
+	private static void usage(String msg)
+	{
+		System.err.println("Usage: hadoop jar JARFILE.jar "+ResumeIndexJob.class.getName()+" <outDir> <collectedDir> [<collectedDir> ...]");
+		System.err.println("    outDir       - HDFS output dir for the index");
+		System.err.println("    collectedDir - output dir of an earlier "+CollectionJob.class.getSimpleName());
+		System.exit(-1);
+	}
+
+	public static class ResumeIndexMapper extends Mapper<Text, BytesWritable, Text, NullWritable>
+	{
+		@Override
+		protected void map(Text key, BytesWritable response, Context context) throws IOException, InterruptedException {
+			context.write(key, NullWritable.get());
+		}
+	}
+
+	/**
+	 * Partitions the keys the way {@link DuplicateFilter} looks them up.
+	 */
+	public static class ResumeIndexPartitioner extends Partitioner<Text, NullWritable>
+	{
+		byte[] bytes = new byte[256];
+
+		@Override
+		public int getPartition(Text key, NullWritable value, int numPartitions) {
+			String request = key.toString();
+			if(bytes.length < request.length())
+				bytes = new byte[request.length() * 2];
+			return DuplicateFilter.partition(bytes, DuplicateFilter.encode(request, bytes), numPartitions);
+		}
+	}
+
+	public static class ResumeIndexReducer extends Reducer<Text, NullWritable, Text, Text>
+	{
+		// the encoded keys, until it is known how many there are
+		File spill;
+		DataOutputStream keys;
+		long numKeys = 0;
+		byte[] bytes = new byte[256];
+
+		@Override
+		protected void setup(Context context) throws IOException, InterruptedException {
+			// in the task's working directory, which is on local disk
+			spill = File.createTempFile("resume", ".keys", new File("."));
+			keys = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spill)));
+		}
+
+		@Override
+		protected void reduce(Text key, Iterable<NullWritable> ignored, Context context) throws IOException, InterruptedException {
+			String request = key.toString();
+			if(bytes.length < request.length())
+				bytes = new byte[request.length() * 2];
+			int length = DuplicateFilter.encode(request, bytes);
+			keys.writeShort(length);
+			keys.write(bytes, 0, length);
+			++numKeys;
+			context.getCounter(COUNTER_GROUP, "INDEXED_REQUESTS").increment(1);
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			keys.close();
+			try {
+				BloomFilter filter = BloomFilter.create(numKeys, context.getConfiguration().getFloat("dns.collection.resume.fpp", 0.00001f));
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spill)));
+				try {
+					for(long i = 0; i < numKeys; ++i)
+					{
+						int length = in.readUnsignedShort();
+						in.readFully(bytes, 0, length);
+						filter.add(bytes, length);
+					}
+				} finally {
+					in.close();
+				}
+				context.getCounter(COUNTER_GROUP, "INDEX_BYTES").increment(filter.getNumBits() / 8);
+	
+				Path part = new Path(FileOutputFormat.getWorkOutputPath(context),
+						DuplicateFilter.COLLECTED_PREFIX+context.getTaskAttemptID().getTaskID().getId());
+				FileSystem fs = part.getFileSystem(context.getConfiguration());
+				DataOutputStream out = fs.create(part);
+				try {
+					filter.write(out);
+				} finally {
+					out.close();
+				}
+			} finally {
+				spill.delete();
+			}
+		}
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+
+		if(args.length < 2)
+		{
+			usage("");
+		}
+
+		String outDir = args[0];
+
+		Configuration conf = getConf();
+
+		Job job = new Job(conf);
+		job.setJobName(ResumeIndexJob.class.getSimpleName()+": outDir="+outDir);
+		job.setJarByClass(getClass());
+
+		job.setMapperClass(ResumeIndexMapper.class);
+		job.setPartitionerClass(ResumeIndexPartitioner.class);
+		job.setReducerClass(ResumeIndexReducer.class);
+		job.setNumReduceTasks(new JobClient(new JobConf(conf)).getClusterStatus().getTaskTrackers());
+
+		job.setMapOutputKeyClass(Text.class);
+		job.setMapOutputValueClass(NullWritable.class);
+		job.setOutputKeyClass(Text.class);
+		job.setOutputValueClass(Text.class);
+
+		job.setInputFormatClass(SequenceFileInputFormat.class);
+		for(int i = 1; i < args.length; ++i)
+			FileInputFormat.addInputPath(job, new Path(args[i]));
+
+		// the reducers only write the index parts
+		job.setOutputFormatClass(TextOutputFormat.class);
+		TextOutputFormat.setOutputPath(job, new Path(outDir));
+		job.submit();
+
+		return job.waitForCompletion(true)?0:1;
+	}
+
+	public static void main(String[] args) throws Exception {
+		ToolRunner.run(new ResumeIndexJob(), args);
+	}
+}
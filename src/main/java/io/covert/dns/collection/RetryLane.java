@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Type;
+
+/**
+ * Holds requests that failed (timed out after all retransmissions, or errored) until they are
+ * due for another try, shared by all resolver threads in a mapper. Resolvers only take from
+ * here when there is no fresh work.
+ *
+ * The delay before each retry grows exponentially with full jitter. Requests that fail
+ * maxAttempts retries are written as "name TAB type TAB class" lines, which
+ * {@link DnsRequestRecordReader} reads back as-is in a later run. The file is only created
+ * once the first request is given up on.
+ */
+public class RetryLane {
+
+	private static final Logger LOG = Logger.getLogger(RetryLane.class);
+
+	static class Entry implements Comparable<Entry>
+	{
+		DnsRequest request;
+		long dueMs;
+
+		@Override
+		public int compareTo(Entry o) {
+			return dueMs < o.dueMs ? -1 : (dueMs > o.dueMs ? 1 : 0);
+		}
+	}
+
+	final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+	final ReentrantLock lock = new ReentrantLock();
+	final Condition changed = lock.newCondition();
+	final Random random = new Random();
+
+	final int maxAttempts;
+	final long baseMs;
+	final long maxMs;
+	final Configuration conf;
+	final Path failedPath;
+	Writer failed = null;
+
+	long retried = 0;
+	long gaveUp = 0;
+
+	/**
+	 * @param failedPath where requests given up on are written, null to only count them
+	 */
+	public RetryLane(int maxAttempts, long baseMs, long maxMs, Configuration conf, Path failedPath)
+	{
+		this.maxAttempts = maxAttempts;
+		this.baseMs = baseMs;
+		this.maxMs = maxMs;
+		this.conf = conf;
+		this.failedPath = failedPath;
+	}
+
+	/**
+	 * @return a lane configured from dns.collection.retry.*, or null unless dns.collection.retry.attempts is set
+	 */
+	public static RetryLane create(Configuration conf, Path failedPath)
+	{
+		int maxAttempts = conf.getInt("dns.collection.retry.attempts", 0);
+		if(maxAttempts <= 0)
+			return null;
+
+		return new RetryLane(maxAttempts,
+				conf.getLong("dns.collection.retry.backoff.ms", 1000),
+				conf.getLong("dns.collection.retry.max.backoff.ms", 30000),
+				conf, failedPath);
+	}
+
+	/**
+	 * Schedules another try for a failed request, or records it as failed for good.
+	 */
+	public void add(DnsRequest request)
+	{
+		if(request.retries >= maxAttempts)
+		{
+			giveUp(request);
+			return;
+		}
+
+		// full jitter, somewhere between now and the exponential backoff
+		long backoff = Math.min(maxMs, baseMs << Math.min(request.retries, 20));
+		Entry e = new Entry();
+		e.request = request;
+		request.retries++;
+
+		lock.lock();
+		try {
+			e.dueMs = System.currentTimeMillis() + (long)(random.nextDouble() * backoff);
+			queue.add(e);
+			retried++;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return a request that is due for another try, or null, never waits
+	 */
+	public DnsRequest poll()
+	{
+		lock.lock();
+		try {
+			Entry e = queue.peek();
+			if(e == null || e.dueMs > System.currentTimeMillis())
+				return null;
+			return queue.poll().request;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits up to the timeout for a request to become due.
+	 *
+	 * @return the request or null
+	 */
+	public DnsRequest poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		lock.lockInterruptibly();
+		try {
+			while(true)
+			{
+				long now = System.currentTimeMillis();
+				Entry e = queue.peek();
+				if(e != null && e.dueMs <= now)
+					return queue.poll().request;
+				if(now >= deadline)
+					return null;
+
+				long wait = deadline - now;
+				if(e != null)
+					wait = Math.min(wait, e.dueMs - now);
+				changed.await(wait, TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return milliseconds until the next retry is due, 0 if one is due now or Long.MAX_VALUE if there are none
+	 */
+	public long getDelayMs()
+	{
+		lock.lock();
+		try {
+			Entry e = queue.peek();
+			if(e == null)
+				return Long.MAX_VALUE;
+			return Math.max(0, e.dueMs - System.currentTimeMillis());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isEmpty()
+	{
+		lock.lock();
+		try {
+			return queue.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getRetried()
+	{
+		lock.lock();
+		try {
+			return retried;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public synchronized long getGaveUp() {
+		return gaveUp;
+	}
+
+	private synchronized void giveUp(DnsRequest request)
+	{
+		gaveUp++;
+		if(request.group != null)
+			request.group.fail();
+		if(failedPath == null)
+			return;
+
+		try {
+			if(failed == null)
+				failed = new BufferedWriter(new OutputStreamWriter(failedPath.getFileSystem(conf).create(failedPath), "UTF-8"));
+			failed.write(request.getName()+"\t"+Type.string(request.getRequestType())+"\t"+DClass.string(request.getDclass())+"\n");
+		} catch (IOException e) {
+			LOG.error("Failed to record failed request: "+request+", reason: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Closes the file of failed requests, if there is one.
+	 */
+	public synchronized void close() throws IOException
+	{
+		if(failed != null)
+			failed.close();
+	}
+}
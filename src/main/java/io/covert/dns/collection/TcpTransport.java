@@ -0,0 +1,448 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+
+/**
+ * DNS over TCP on long lived connections, shared by all resolver threads in a mapper.
+ *
+ * Every nameserver gets a small pool of connections, each one pipelines many queries
+ * (RFC 7766). Queries are rewritten with an ID that is unique on their connection, so
+ * responses can arrive in any order, and the caller's ID is put back into the response.
+ * A reader thread per connection hands out responses and expires queries past their deadline.
+ */
+public class TcpTransport {
+
+	private static final Logger LOG = Logger.getLogger(TcpTransport.class);
+	private static final int MAX_ID = 0x10000;
+	private static final int SWEEP_MS = 50;
+
+	/**
+	 * Receives the outcome of {@link TcpTransport#sendAsync}, called from a reader thread.
+	 */
+	public interface Callback
+	{
+		void onResponse(byte[] response);
+		void onFailure(IOException e);
+	}
+
+	static class Query
+	{
+		int id;
+		int callerId;
+		long deadline;
+		Callback callback;
+
+		// for blocking sends
+		byte[] response;
+		IOException error;
+		boolean done = false;
+	}
+
+	class Connection implements Runnable
+	{
+		final int nameserver;
+		final Socket socket;
+		final OutputStream out;
+		final InputStream in;
+		final Object writeLock = new Object();
+		final Query[] pending = new Query[MAX_ID];
+		int numPending = 0;
+		int nextId = 0;
+		long nextSweep = 0;
+		boolean closed = false;
+
+		Connection(int nameserver) throws IOException
+		{
+			this.nameserver = nameserver;
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.connect(addresses[nameserver], (int)connectTimeoutMs);
+			socket.setSoTimeout(SWEEP_MS);
+			out = new BufferedOutputStream(socket.getOutputStream());
+			in = new BufferedInputStream(socket.getInputStream());
+		}
+
+		void send(Query q, byte[] query, int length) throws IOException
+		{
+			int id;
+			synchronized (this) {
+				if(closed)
+					throw new IOException("Connection to "+addresses[nameserver]+" is closed");
+				if(numPending >= MAX_ID / 2)
+					throw new IOException("Too many queries outstanding to "+addresses[nameserver]);
+
+				id = nextId;
+				while(pending[id] != null)
+					id = (id + 1) & (MAX_ID - 1);
+				nextId = (id + 1) & (MAX_ID - 1);
+
+				q.id = id;
+				pending[id] = q;
+				numPending++;
+			}
+
+			// a write blocks while the server is not reading, the reader must still be able to
+			// take responses out of pending meanwhile or neither side ever makes progress
+			try {
+				synchronized (writeLock) {
+					out.write(length >>> 8);
+					out.write(length);
+					out.write(id >>> 8);
+					out.write(id);
+					out.write(query, 2, length - 2);
+					out.flush();
+				}
+			} catch (IOException e) {
+				boolean owned;
+				synchronized (this) {
+					owned = pending[id] == q;
+					if(owned)
+					{
+						pending[id] = null;
+						numPending--;
+					}
+				}
+				close(e);
+				// otherwise the query was already completed, by the close or a response
+				if(owned)
+					throw e;
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			IOException error = null;
+			try {
+				byte[] prefix = new byte[2];
+				while(true)
+				{
+					read(prefix, 2);
+					int length = ((prefix[0] & 0xFF) << 8) | (prefix[1] & 0xFF);
+					byte[] response = new byte[length];
+					read(response, length);
+					if(length < DnsResponse.HEADER_LENGTH)
+						continue;
+
+					Query q;
+					int id = DnsResponse.getId(response);
+					synchronized (this) {
+						q = pending[id];
+						if(q != null)
+						{
+							pending[id] = null;
+							numPending--;
+						}
+					}
+					if(q == null)
+						continue;
+
+					response[0] = (byte)(q.callerId >>> 8);
+					response[1] = (byte)q.callerId;
+					complete(q, response, null);
+					expire();
+				}
+			} catch (EOFException e) {
+				error = new IOException("Connection closed by "+addresses[nameserver]);
+			} catch (IOException e) {
+				error = e;
+			}
+			close(error);
+		}
+
+		// reads exactly length bytes, expiring queries while the connection is quiet
+		private void read(byte[] b, int length) throws IOException
+		{
+			int n = 0;
+			while(n < length)
+			{
+				int read;
+				try {
+					read = in.read(b, n, length - n);
+				} catch (SocketTimeoutException e) {
+					expire();
+					continue;
+				}
+				if(read < 0)
+					throw new EOFException();
+				n += read;
+			}
+		}
+
+		private void expire()
+		{
+			long now = System.currentTimeMillis();
+			List<Query> expired = null;
+			synchronized (this) {
+				if(numPending == 0 || now < nextSweep)
+					return;
+				nextSweep = now + SWEEP_MS;
+				for(int i = 0; i < MAX_ID; ++i)
+				{
+					Query q = pending[i];
+					if(q != null && q.deadline <= now)
+					{
+						pending[i] = null;
+						numPending--;
+						if(expired == null)
+							expired = new ArrayList<Query>();
+						expired.add(q);
+					}
+				}
+			}
+			if(expired != null)
+			{
+				for(Query q : expired)
+					complete(q, null, new SocketTimeoutException("No TCP response from "+addresses[nameserver]));
+			}
+		}
+
+		void close(IOException error)
+		{
+			List<Query> failed = new ArrayList<Query>();
+			synchronized (this) {
+				if(closed)
+					return;
+				closed = true;
+				for(int i = 0; i < MAX_ID; ++i)
+				{
+					if(pending[i] != null)
+						failed.add(pending[i]);
+					pending[i] = null;
+				}
+				numPending = 0;
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {}
+			if(error != null && LOG.isDebugEnabled())
+				LOG.debug("TCP connection to "+addresses[nameserver]+" failed: "+error.getMessage());
+
+			if(error == null)
+				error = new IOException("Connection to "+addresses[nameserver]+" closed");
+			for(Query q : failed)
+				complete(q, null, error);
+		}
+
+		synchronized boolean isClosed() {
+			return closed;
+		}
+	}
+
+	final InetSocketAddress[] addresses;
+	final Connection[][] pools;
+	final int[] nextConnection;
+	final boolean always;
+	final long connectTimeoutMs;
+	final AtomicLong queries = new AtomicLong();
+	final AtomicLong connects = new AtomicLong();
+	boolean shutdown = false;
+
+	public TcpTransport(InetSocketAddress[] addresses, int connectionsPerNameserver, boolean always, long connectTimeoutMs)
+	{
+		this.addresses = addresses;
+		this.always = always;
+		this.connectTimeoutMs = connectTimeoutMs;
+		pools = new Connection[addresses.length][connectionsPerNameserver];
+		nextConnection = new int[addresses.length];
+	}
+
+	/**
+	 * @return a transport configured by dns.collection.tcp (fallback, always or off), null when off
+	 */
+	public static TcpTransport create(Configuration conf, String[] nameservers)
+	{
+		String mode = conf.get("dns.collection.tcp", "fallback");
+		if(mode.equals("off"))
+			return null;
+		if(!mode.equals("fallback") && !mode.equals("always"))
+			throw new IllegalArgumentException("Unknown dns.collection.tcp: "+mode);
+
+		return new TcpTransport(ResolverThread.getAddresses(nameservers),
+				conf.getInt("dns.collection.tcp.connections", 2),
+				mode.equals("always"),
+				conf.getLong("dns.collection.tcp.connect.timeout.ms", 5000));
+	}
+
+	/**
+	 * @return true if every query should go over TCP, not just truncated ones
+	 */
+	public boolean isAlways() {
+		return always;
+	}
+
+	/**
+	 * Sends a query and waits for its response.
+	 *
+	 * @param query the query, its ID is put back into the response
+	 */
+	public byte[] send(int nameserver, byte[] query, int length, long timeoutMs) throws IOException, InterruptedException
+	{
+		Query q = new Query();
+		send(nameserver, q, query, length, timeoutMs);
+
+		synchronized (q) {
+			long deadline = q.deadline + SWEEP_MS * 2;
+			while(!q.done)
+			{
+				long wait = deadline - System.currentTimeMillis();
+				if(wait <= 0)
+					throw new SocketTimeoutException("No TCP response from "+addresses[nameserver]);
+				q.wait(wait);
+			}
+			if(q.error != null)
+				throw q.error;
+			return q.response;
+		}
+	}
+
+	/**
+	 * Sends a query, the callback is called from another thread once it is answered, fails or times out.
+	 * Errors while sending are thrown instead.
+	 */
+	public void sendAsync(int nameserver, byte[] query, int length, long timeoutMs, Callback callback) throws IOException
+	{
+		Query q = new Query();
+		q.callback = callback;
+		send(nameserver, q, query, length, timeoutMs);
+	}
+
+	private void send(int nameserver, Query q, byte[] query, int length, long timeoutMs) throws IOException
+	{
+		q.callerId = DnsResponse.getId(query);
+		q.deadline = System.currentTimeMillis() + timeoutMs;
+		queries.incrementAndGet();
+
+		Connection c = connection(nameserver);
+		try {
+			c.send(q, query, length);
+		} catch (IOException e) {
+			if(!c.isClosed())
+				throw e;
+			// the server may have just closed an idle connection, try a fresh one once
+			reconnect(nameserver, c).send(q, query, length);
+		}
+	}
+
+	private Connection connection(int nameserver) throws IOException
+	{
+		synchronized (pools[nameserver]) {
+			if(shutdown)
+				throw new IOException("TCP transport is closed");
+
+			Connection[] pool = pools[nameserver];
+			int i = nextConnection[nameserver];
+			nextConnection[nameserver] = (i + 1) % pool.length;
+
+			if(pool[i] == null || pool[i].isClosed())
+				open(nameserver, i);
+			return pool[i];
+		}
+	}
+
+	// replaces a closed connection in its pool slot, unless another thread already did
+	private Connection reconnect(int nameserver, Connection closed) throws IOException
+	{
+		synchronized (pools[nameserver]) {
+			if(shutdown)
+				throw new IOException("TCP transport is closed");
+
+			Connection[] pool = pools[nameserver];
+			for(int i = 0; i < pool.length; ++i)
+			{
+				if(pool[i] == closed)
+					return open(nameserver, i);
+			}
+			for(int i = 0; i < pool.length; ++i)
+			{
+				if(pool[i] != null && !pool[i].isClosed())
+					return pool[i];
+			}
+			return open(nameserver, 0);
+		}
+	}
+
+	// called holding the pool's lock
+	private Connection open(int nameserver, int i) throws IOException
+	{
+		Connection[] pool = pools[nameserver];
+		pool[i] = new Connection(nameserver);
+		connects.incrementAndGet();
+		Thread reader = new Thread(pool[i], "dns-tcp-"+addresses[nameserver]+"-"+i);
+		reader.setDaemon(true);
+		reader.start();
+		return pool[i];
+	}
+
+	private static void complete(Query q, byte[] response, IOException error)
+	{
+		if(q.callback != null)
+		{
+			if(error != null)
+				q.callback.onFailure(error);
+			else
+				q.callback.onResponse(response);
+			return;
+		}
+
+		synchronized (q) {
+			q.response = response;
+			q.error = error;
+			q.done = true;
+			q.notifyAll();
+		}
+	}
+
+	public void close()
+	{
+		for(Connection[] pool : pools)
+		{
+			synchronized (pool) {
+				shutdown = true;
+				for(Connection c : pool)
+				{
+					if(c != null)
+						c.close(null);
+				}
+			}
+		}
+	}
+
+	public long getQueries() {
+		return queries.get();
+	}
+
+	public long getConnects() {
+		return connects.get();
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.util.List;
+
+/**
+ * Hashed timer wheel for tracking the deadlines of outstanding requests. Scheduling and
+ * cancelling are O(1), expiring is proportional to the number of ticks elapsed.
+ *
+ * Not thread safe, it is meant to be owned by a single resolver thread.
+ */
+public class TimerWheel {
+
+	public static class Timeout
+	{
+		long deadlineTick;
+		Timeout prev;
+		Timeout next;
+		int slot = -1;
+
+		public boolean isScheduled() {
+			return slot >= 0;
+		}
+	}
+
+	final Timeout[] slots;
+	final int mask;
+	final long tickMs;
+	long currentTick;
+	int size = 0;
+
+	public TimerWheel(int numSlots, long tickMs, long nowMs)
+	{
+		int n = 1;
+		while(n < numSlots)
+			n <<= 1;
+
+		this.slots = new Timeout[n];
+		this.mask = n - 1;
+		this.tickMs = tickMs;
+		this.currentTick = nowMs / tickMs;
+	}
+
+	public void schedule(Timeout timeout, long deadlineMs)
+	{
+		if(timeout.isScheduled())
+			cancel(timeout);
+
+		long tick = deadlineMs / tickMs;
+		if(tick <= currentTick)
+			tick = currentTick + 1;
+
+		int slot = (int)(tick & mask);
+		timeout.deadlineTick = tick;
+		timeout.slot = slot;
+		timeout.prev = null;
+		timeout.next = slots[slot];
+		if(slots[slot] != null)
+			slots[slot].prev = timeout;
+		slots[slot] = timeout;
+		++size;
+	}
+
+	public void cancel(Timeout timeout)
+	{
+		if(!timeout.isScheduled())
+			return;
+
+		if(timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			slots[timeout.slot] = timeout.next;
+
+		if(timeout.next != null)
+			timeout.next.prev = timeout.prev;
+
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.slot = -1;
+		--size;
+	}
+
+	/**
+	 * Advances the wheel to nowMs and adds every timeout whose deadline has passed to expired.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Timeout> int expire(long nowMs, List<T> expired)
+	{
+		long nowTick = nowMs / tickMs;
+		int count = 0;
+
+		// no need to walk the wheel more than one full revolution
+		long start = Math.max(currentTick + 1, nowTick - mask);
+		for(long tick = start; tick <= nowTick && size > 0; ++tick)
+		{
+			Timeout t = slots[(int)(tick & mask)];
+			while(t != null)
+			{
+				Timeout next = t.next;
+				if(t.deadlineTick <= nowTick)
+				{
+					cancel(t);
+					expired.add((T)t);
+					++count;
+				}
+				t = next;
+			}
+		}
+
+		if(nowTick > currentTick)
+			currentTick = nowTick;
+
+		return count;
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import io.covert.util.BoundedBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Dispatches every request onto its own thread, keeping the simple blocking call path.
+ * A semaphore caps the number of requests in flight.
+ *
+ * On runtimes with virtual threads (Java 21+) each request runs on a virtual thread, looked up
+ * reflectively so the project still builds for older targets. Otherwise it falls back to
+ * short lived daemon platform threads with small stacks.
+ */
+public class VirtualResolverThread extends ResolverThread {
+
+	private static final Logger LOG = Logger.getLogger(VirtualResolverThread.class);
+	private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+	final int maxInFlight;
+	final Semaphore inFlight;
+	final ThreadFactory factory;
+
+	// stats are not thread safe, so each running task borrows one from this pool
+	final ConcurrentLinkedQueue<ResolverStats> idleStats = new ConcurrentLinkedQueue<ResolverStats>();
+	final List<ResolverStats> allStats = new ArrayList<ResolverStats>();
+	final ConcurrentLinkedQueue<Session> idleSessions = new ConcurrentLinkedQueue<Session>();
+
+	public VirtualResolverThread(
+			BoundedBuffer<DnsRequest> inQueue,
+			BoundedBuffer<DnsResponse> outQueue,
+			String[] nameservers,
+			int timeoutSecs,
+			int maxInFlight) {
+		super(inQueue, outQueue, nameservers, timeoutSecs);
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.factory = createThreadFactory();
+	}
+
+	@Override
+	public void run() {
+
+		long started = System.nanoTime();
+		try {
+			DnsRequest req;
+			while((req = nextRequest()) != null)
+			{
+				inFlight.acquire();
+				acquireConcurrency();
+				factory.newThread(new Task(req)).start();
+			}
+
+			// wait for every outstanding task to finish
+			inFlight.acquire(maxInFlight);
+			inFlight.release(maxInFlight);
+		} catch (InterruptedException e) {
+			LOG.error("Interrupted, stopping resolver thread");
+		}
+
+		synchronized (allStats) {
+			for(ResolverStats s : allStats)
+				stats.add(s);
+		}
+		Session session;
+		while((session = idleSessions.poll()) != null)
+			session.close();
+		// tasks overlap, so report wall clock time rather than the sum of the tasks
+		stats.totalRequestHandlingNanos = System.nanoTime() - started;
+	}
+
+	@Override
+	public int getInFlight() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	@Override
+	protected boolean hasOutstanding()
+	{
+		// running tasks can still add to the retry lane
+		return inFlight.availablePermits() < maxInFlight;
+	}
+
+	@Override
+	protected Session openSession()
+	{
+		// one per running task, sockets and buffers are reused by later tasks
+		Session s = idleSessions.poll();
+		return s != null ? s : new Session(edns);
+	}
+
+	@Override
+	protected void closeSession(Session session)
+	{
+		idleSessions.offer(session);
+	}
+
+	private ResolverStats borrowStats()
+	{
+		ResolverStats s = idleStats.poll();
+		if(s == null)
+		{
+			s = new ResolverStats();
+			synchronized (allStats) {
+				allStats.add(s);
+			}
+		}
+		return s;
+	}
+
+	private class Task implements Runnable
+	{
+		DnsRequest req;
+
+		public Task(DnsRequest req) {
+			this.req = req;
+		}
+
+		@Override
+		public void run() {
+			ResolverStats s = borrowStats();
+			try {
+				DnsResponse resp;
+				try {
+					resp = process(req, s);
+				} finally {
+					releaseConcurrency();
+				}
+				s.numRequests++;
+				if(resp != null)
+					outQueue.put(resp);
+			} catch (InterruptedException e) {
+				LOG.error("Interrupted while handing off response for: "+req);
+			} finally {
+				idleStats.offer(s);
+				inFlight.release();
+			}
+		}
+	}
+
+	private static ThreadFactory createThreadFactory()
+	{
+		try {
+			// Thread.ofVirtual().name("dns-resolver-", 0).factory()
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "dns-resolver-", 0L);
+			ThreadFactory factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+			LOG.info("Using virtual threads for DNS requests");
+			return factory;
+		} catch (Exception e) {
+			LOG.info("Virtual threads are not available, using platform threads for DNS requests");
+		}
+
+		final AtomicLong count = new AtomicLong(0);
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(null, r, "dns-resolver-"+count.getAndIncrement(), PLATFORM_STACK_SIZE);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+}
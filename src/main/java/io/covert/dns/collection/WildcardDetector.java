@@ -0,0 +1,411 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+/**
+ * Finds zones that answer any name, so the requests and responses for their subdomains that
+ * only get the wildcard answers can be left out.
+ *
+ * When the first subdomain request for a domain and type goes out, names made of random
+ * labels are looked up under the domain on a few probe threads. If every one of them gets an
+ * answer, the zone has a wildcard and the answers (without owner names or TTLs) are its
+ * fingerprint. Until the probes are done the responses for a zone are kept as they are.
+ *
+ * Once a wildcard is found the zone's requests are still sent for a sample: names with records
+ * of their own answer differently. If the first sampleSize responses all held nothing but the
+ * wildcard answers, the rest of the zone's requests are not sent at all. A single response that
+ * differs keeps every request of the zone going out.
+ *
+ * Zones are kept in an LRU cache used by the map thread, the other methods are thread safe.
+ */
+public class WildcardDetector {
+
+	private static final Logger LOG = Logger.getLogger(WildcardDetector.class);
+	private static final String LABEL_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789";
+	private static final int LABEL_LENGTH = 16;
+
+	/**
+	 * What is known about a domain for one type and class.
+	 */
+	public static class Zone
+	{
+		final String key;
+		Set<String> fingerprint;
+		byte[] response;
+		// written last by the probe thread, the other fields are safe to read once it is set
+		volatile boolean done = false;
+		volatile boolean wildcard = false;
+		// set by the writer, what the sample of the zone's responses looked like
+		final AtomicInteger matched = new AtomicInteger();
+		volatile boolean distinct = false;
+
+		Zone(String key)
+		{
+			this.key = key;
+		}
+
+		void set(boolean wildcard, Set<String> fingerprint, byte[] response)
+		{
+			this.fingerprint = fingerprint;
+			this.response = response;
+			this.wildcard = wildcard;
+			this.done = true;
+		}
+
+		/**
+		 * @return true once the probes found a wildcard, false while they run
+		 */
+		public boolean isWildcard() {
+			return done && wildcard;
+		}
+
+		/**
+		 * @return the answers every name in the zone gets, as "TYPE rdata" strings
+		 */
+		public Set<String> getFingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * @return a response for *.domain holding the wildcard answers
+		 */
+		public byte[] getResponse() {
+			return response;
+		}
+	}
+
+	final String[] nameservers;
+	final int timeoutMs;
+	final int numProbes;
+	final int sampleSize;
+	final Map<String, Zone> cache;
+	// outlives the cache, a zone evicted and probed again is not reported twice
+	final Set<String> reported = new HashSet<String>();
+	final Random random = new Random();
+	final ExecutorService probeThreads;
+	SimpleResolver[] resolvers;
+	NameserverRateLimiter rateLimiter = null;
+
+	final AtomicLong probes = new AtomicLong();
+	final AtomicLong wildcards = new AtomicLong();
+	final AtomicLong matched = new AtomicLong();
+	// only used by the map thread
+	long notSent = 0;
+
+	/**
+	 * @param sampleSize wildcard answers in a row after which a zone's requests are no longer
+	 * sent, 0 sends them all
+	 */
+	public WildcardDetector(String[] nameservers, int timeoutMs, int numProbes, int sampleSize, final int cacheSize, int numThreads)
+	{
+		this.nameservers = nameservers;
+		this.timeoutMs = timeoutMs;
+		this.numProbes = numProbes;
+		this.sampleSize = sampleSize;
+		this.cache = new LinkedHashMap<String, Zone>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Zone> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		this.probeThreads = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "WildcardProbe");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * dns.collection.wildcard is off, drop (wildcard answers are left out of the output, "skip"
+	 * is the old name) or collapse (one *.domain response is written for them instead).
+	 *
+	 * @return a detector configured by dns.collection.wildcard.*, or null if dns.collection.wildcard is off
+	 */
+	public static WildcardDetector create(Configuration conf, String[] nameservers)
+	{
+		String mode = conf.get("dns.collection.wildcard", "off");
+		if(mode.equals("off"))
+			return null;
+		if(!mode.equals("drop") && !mode.equals("skip") && !mode.equals("collapse"))
+			throw new IllegalArgumentException("Unknown dns.collection.wildcard: "+mode);
+
+		return new WildcardDetector(nameservers,
+				conf.getInt("dns.collection.timeout.secs", 5) * 1000,
+				conf.getInt("dns.collection.wildcard.probes", 2),
+				conf.getInt("dns.collection.wildcard.sample", 100),
+				conf.getInt("dns.collection.wildcard.cache.size", 10000),
+				conf.getInt("dns.collection.wildcard.threads", 4));
+	}
+
+	/**
+	 * Starts probing the domain of the request unless it is cached. Called by the map thread.
+	 *
+	 * @return the zone of the request, the probes may still be running
+	 */
+	public Zone lookup(DnsRequest request)
+	{
+		String key = request.domain + "\t" + request.requestType + "\t" + request.dclass;
+		Zone zone = cache.get(key);
+		if(zone == null)
+		{
+			final Zone probed = new Zone(key);
+			final String domain = request.domain;
+			final int type = request.requestType;
+			final int dclass = request.dclass;
+			probeThreads.execute(new Runnable() {
+				@Override
+				public void run() {
+					probe(probed, domain, type, dclass);
+				}
+			});
+			zone = probed;
+			cache.put(key, zone);
+		}
+		return zone;
+	}
+
+	/**
+	 * Called by the map thread before a request of the zone goes out.
+	 *
+	 * @return true if the request need not be sent, the sample of the zone's responses held
+	 * nothing but the wildcard answers
+	 */
+	public boolean isSampled(Zone zone)
+	{
+		if(sampleSize <= 0 || !zone.isWildcard() || zone.distinct || zone.matched.get() < sampleSize)
+			return false;
+		notSent++;
+		return true;
+	}
+
+	/**
+	 * @param wire a response for a subdomain in the zone
+	 * @return true if it is a wildcard zone and the response holds nothing but wildcard answers
+	 */
+	public boolean matches(Zone zone, byte[] wire)
+	{
+		if(!zone.isWildcard())
+			return false;
+		int rcode = DnsResponse.getRcode(wire);
+		if(rcode != Rcode.NOERROR)
+		{
+			// a name that doesn't exist under a wildcard is a delegation or an empty non-terminal
+			if(rcode == Rcode.NXDOMAIN)
+				zone.distinct = true;
+			return false;
+		}
+
+		Record[] answers;
+		try {
+			answers = new Message(wire).getSectionArray(Section.ANSWER);
+		} catch (IOException e) {
+			return false;
+		}
+		// no answers of this type, the name has records of its own
+		boolean wildcard = answers.length > 0;
+		for(Record r : answers)
+		{
+			if(!zone.fingerprint.contains(Type.string(r.getType())+" "+r.rdataToString()))
+			{
+				wildcard = false;
+				break;
+			}
+		}
+		if(!wildcard)
+		{
+			zone.distinct = true;
+			return false;
+		}
+		zone.matched.incrementAndGet();
+		matched.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @return true the first time it is called for the zone
+	 */
+	public synchronized boolean report(Zone zone)
+	{
+		return reported.add(zone.key);
+	}
+
+	/**
+	 * Stops the probes that are still running.
+	 */
+	public void close()
+	{
+		probeThreads.shutdownNow();
+	}
+
+	private void probe(Zone zone, String domain, int type, int dclass)
+	{
+		Set<String> fingerprint = null;
+		Message first = null;
+		for(int i = 0; i < numProbes; ++i)
+		{
+			Message response;
+			try {
+				probes.incrementAndGet();
+				response = send(randomLabel() + "." + domain + ".", type, dclass);
+			} catch (IOException e) {
+				// can't tell, so don't leave anything out
+				LOG.warn("Wildcard probe for "+domain+" failed: "+e.getMessage());
+				zone.set(false, null, null);
+				return;
+			} catch (InterruptedException e) {
+				zone.set(false, null, null);
+				return;
+			}
+
+			Record[] answers = response.getSectionArray(Section.ANSWER);
+			if(response.getRcode() != Rcode.NOERROR || answers.length == 0)
+			{
+				zone.set(false, null, null);
+				return;
+			}
+
+			// round robin answers can differ between probes, the fingerprint holds them all
+			if(fingerprint == null)
+			{
+				fingerprint = new TreeSet<String>();
+				first = response;
+			}
+			for(Record r : answers)
+				fingerprint.add(Type.string(r.getType())+" "+r.rdataToString());
+		}
+
+		wildcards.incrementAndGet();
+		if(LOG.isDebugEnabled())
+			LOG.debug(domain+" "+Type.string(type)+" has a wildcard: "+fingerprint);
+		byte[] collapsed = null;
+		try {
+			collapsed = collapse(first, domain);
+		} catch (TextParseException e) {
+			// nothing to report, the responses are still matched
+		}
+		zone.set(true, fingerprint, collapsed);
+	}
+
+	private Message send(String name, int type, int dclass) throws IOException, InterruptedException
+	{
+		synchronized (this)
+		{
+			if(resolvers == null)
+				createResolvers();
+		}
+
+		int index = random.nextInt(nameservers.length);
+		if(rateLimiter != null)
+			rateLimiter.acquire(index);
+		return resolvers[index].send(Message.newQuery(Record.newRecord(Name.fromString(name), type, dclass)));
+	}
+
+	private void createResolvers() throws IOException
+	{
+		SimpleResolver[] created = new SimpleResolver[nameservers.length];
+		for(int i = 0; i < nameservers.length; ++i)
+		{
+			created[i] = new SimpleResolver(nameservers[i]);
+			created[i].setTimeout(timeoutMs / 1000, timeoutMs % 1000);
+		}
+		resolvers = created;
+	}
+
+	// the probe response, but for *.domain so the random label never shows up in the output
+	private static byte[] collapse(Message probe, String domain) throws TextParseException
+	{
+		Name wildcard = Name.fromString("*." + domain + ".");
+		Record question = probe.getQuestion();
+
+		Message response = new Message(probe.getHeader().getID());
+		response.getHeader().setFlag(Flags.QR);
+		response.getHeader().setFlag(Flags.RD);
+		response.getHeader().setFlag(Flags.RA);
+		response.addRecord(Record.newRecord(wildcard, question.getType(), question.getDClass()), Section.QUESTION);
+		for(Record r : probe.getSectionArray(Section.ANSWER))
+		{
+			// records after a CNAME belong to its target, they keep their names
+			Record renamed = r.getName().equals(question.getName()) ? r.withName(wildcard) : r;
+			response.addRecord(renamed, Section.ANSWER);
+		}
+		return response.toWire();
+	}
+
+	private String randomLabel()
+	{
+		StringBuilder label = new StringBuilder(LABEL_LENGTH);
+		for(int i = 0; i < LABEL_LENGTH; ++i)
+			label.append(LABEL_CHARS.charAt(random.nextInt(LABEL_CHARS.length())));
+		return label.toString();
+	}
+
+	public void setRateLimiter(NameserverRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	public long getProbes() {
+		return probes.get();
+	}
+
+	public long getWildcards() {
+		return wildcards.get();
+	}
+
+	/**
+	 * @return the number of responses that held nothing but wildcard answers
+	 */
+	public long getMatched() {
+		return matched.get();
+	}
+
+	/**
+	 * @return the number of requests left unsent, see {@link #isSampled(Zone)}. Read it from the map thread.
+	 */
+	public long getNotSent() {
+		return notSent;
+	}
+}
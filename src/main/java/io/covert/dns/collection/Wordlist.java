@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A subdomain wordlist, one label per line, memory-mapped from the local copy the distributed
+ * cache made. Only the page cache holds the words, iterating over them allocates just the
+ * strings handed out.
+ *
+ * A slice is the words starting within a byte range of the file, like a line split, so the
+ * list can be cut into ranges without an index of where each word starts.
+ */
+public class Wordlist {
+
+	final MappedByteBuffer buffer;
+	final int size;
+
+	public Wordlist(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if(raf.length() > Integer.MAX_VALUE)
+				throw new IOException("Wordlist is too big to map: "+file);
+			size = (int)raf.length();
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			// the mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the wordlist set by dns.requests.wordlist, or null if there is none
+	 */
+	public static Wordlist open(Configuration conf) throws IOException
+	{
+		String wordlist = conf.get("dns.requests.wordlist");
+		if(wordlist == null)
+			return null;
+
+		String name = new Path(wordlist).getName();
+		Path[] cached = DistributedCache.getLocalCacheFiles(conf);
+		if(cached != null)
+		{
+			for(Path p : cached)
+			{
+				if(p.getName().equals(name))
+					return new Wordlist(new File(p.toUri().getPath()));
+			}
+		}
+
+		// e.g. the local runner, which does not localize cache files
+		Path path = new Path(wordlist);
+		if(path.getFileSystem(conf) == FileSystem.getLocal(conf))
+			return new Wordlist(new File(path.toUri().getPath()));
+		throw new IOException("Wordlist is not in the distributed cache: "+wordlist);
+	}
+
+	/**
+	 * @return the length of the file, the end of the last slice
+	 */
+	public int length() {
+		return size;
+	}
+
+	/**
+	 * @return the words starting at or after start and before end
+	 */
+	public Iterable<String> slice(final long start, final long end)
+	{
+		return new Iterable<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new Words((int)Math.min(start, size), (int)Math.min(end, size));
+			}
+		};
+	}
+
+	private class Words implements Iterator<String>
+	{
+		final int end;
+		int pos;
+		String next;
+
+		Words(int start, int end)
+		{
+			this.end = end;
+			this.pos = start;
+			// a word that started before the slice belongs to the previous one
+			if(pos > 0 && buffer.get(pos - 1) != '\n')
+			{
+				while(pos < size && buffer.get(pos) != '\n')
+					pos++;
+				pos++;
+			}
+			advance();
+		}
+
+		private void advance()
+		{
+			next = null;
+			while(next == null && pos < end)
+			{
+				int from = pos;
+				int to = from;
+				while(to < size && buffer.get(to) != '\n')
+					to++;
+				pos = to + 1;
+
+				// strip "\r", surrounding blanks and a trailing dot, skip empty lines
+				while(to > from && buffer.get(to - 1) <= ' ')
+					to--;
+				while(from < to && buffer.get(from) <= ' ')
+					from++;
+				if(to > from && buffer.get(to - 1) == '.')
+					to--;
+				if(to > from)
+					next = decode(from, to);
+			}
+		}
+
+		private String decode(int from, int to)
+		{
+			// labels are ASCII, anything else is kept as ISO-8859-1 and fails to encode later
+			char[] chars = new char[to - from];
+			for(int i = from; i < to; ++i)
+				chars[i - from] = (char)(buffer.get(i) & 0xFF);
+			return new String(chars);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public String next() {
+			if(next == null)
+				throw new NoSuchElementException();
+			String word = next;
+			advance();
+			return word;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Rewrites the collection input so the names of a registered zone are together, in reversed
+ * label order. Every zone ends up whole in one output file and each file is sorted by zone,
+ * so a mapper works through the names of a zone, and of a TLD, one after the other and its
+ * resolver finds their delegations cached. Zones are registered under the public suffixes in
+ * -D dns.zonesort.suffixes=file, or else under their TLD.
+ *
+ * {@link CollectionJob} runs it first with -D dns.collection.zonesort=true.
+ */
+public class ZoneSortJob extends Configured implements Tool  {
+
+	public static final String COUNTER_GROUP = ZoneSortJob.class.getSimpleName();
+
+	private static void usage(String msg)
+	{
+		System.err.println("Usage: hadoop jar JARFILE.jar "+ZoneSortJob.class.getName()+" <inDir> <outDir>");
+		System.err.println("    inDir  - HDFS input dir, as given to "+CollectionJob.class.getSimpleName());
+		System.err.println("    outDir - HDFS output dir for the sorted input");
+		System.exit(-1);
+	}
+
+	public static class ZoneSortMapper extends Mapper<LongWritable, Text, Text, Text>
+	{
+		PublicSuffixList suffixes;
+		StringBuilder buffer = new StringBuilder();
+		Text outKey = new Text();
+
+		@Override
+		protected void setup(Context context) throws IOException, InterruptedException {
+			suffixes = PublicSuffixList.create(context.getConfiguration());
+		}
+
+		@Override
+		protected void map(LongWritable offset, Text line, Context context) throws IOException, InterruptedException {
+
+			// a domain, or an explicit "name TAB type TAB class" request
+			String text = line.toString();
+			int tab = text.indexOf('\t');
+			String name = (tab < 0 ? text : text.substring(0, tab)).trim().toLowerCase();
+			if(name.endsWith("."))
+				name = name.substring(0, name.length() - 1);
+			if(name.length() == 0)
+			{
+				context.getCounter(COUNTER_GROUP, "EMPTY_LINES").increment(1);
+				return;
+			}
+
+			// the zone first, so its names stay together whatever comes after it
+			buffer.setLength(0);
+			appendReversed(buffer, suffixes.getRegisteredZone(name)).append('\t');
+			appendReversed(buffer, name);
+			outKey.set(buffer.toString());
+			context.write(outKey, line);
+			context.getCounter(COUNTER_GROUP, "NAMES").increment(1);
+		}
+	}
+
+	/**
+	 * Sends all names of a zone to the same reducer.
+	 */
+	public static class ZonePartitioner extends Partitioner<Text, Text>
+	{
+		@Override
+		public int getPartition(Text key, Text line, int numPartitions) {
+			int zone = key.find("\t");
+			int hash = 0;
+			byte[] bytes = key.getBytes();
+			for(int i = 0; i < zone; ++i)
+				hash = 31 * hash + bytes[i];
+			return (hash & Integer.MAX_VALUE) % numPartitions;
+		}
+	}
+
+	public static class ZoneSortReducer extends Reducer<Text, Text, NullWritable, Text>
+	{
+		@Override
+		protected void reduce(Text key, Iterable<Text> lines, Context context) throws IOException, InterruptedException {
+			for(Text line : lines)
+				context.write(NullWritable.get(), line);
+		}
+	}
+
+	/**
+	 * Appends com.example.www for www.example.com.
+	 */
+	static StringBuilder appendReversed(StringBuilder buffer, String name)
+	{
+		int end = name.length();
+		while(end > 0)
+		{
+			int start = name.lastIndexOf('.', end - 1) + 1;
+			buffer.append(name, start, end);
+			if(start > 0)
+				buffer.append('.');
+			end = start - 1;
+		}
+		return buffer;
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+
+		if(args.length != 2)
+		{
+			usage("");
+		}
+
+		String inDir = args[0];
+		String outDir = args[1];
+
+		Configuration conf = getConf();
+
+		Job job = new Job(conf);
+		job.setJobName(ZoneSortJob.class.getSimpleName()+": inDir="+inDir+", outDir="+outDir);
+		job.setJarByClass(getClass());
+
+		job.setMapperClass(ZoneSortMapper.class);
+		job.setPartitionerClass(ZonePartitioner.class);
+		job.setReducerClass(ZoneSortReducer.class);
+		job.setNumReduceTasks(new JobClient(new JobConf(conf)).getClusterStatus().getTaskTrackers());
+
+		job.setMapOutputKeyClass(Text.class);
+		job.setMapOutputValueClass(Text.class);
+		job.setOutputKeyClass(NullWritable.class);
+		job.setOutputValueClass(Text.class);
+
+		job.setInputFormatClass(TextInputFormat.class);
+		FileInputFormat.addInputPath(job, new Path(inDir));
+
+		job.setOutputFormatClass(TextOutputFormat.class);
+		TextOutputFormat.setOutputPath(job, new Path(outDir));
+		job.submit();
+
+		return job.waitForCompletion(true)?0:1;
+	}
+
+	public static void main(String[] args) throws Exception {
+		ToolRunner.run(new ZoneSortJob(), args);
+	}
+}
@@ -16,6 +16,8 @@
  */
 package io.covert.dns.util;
 
+import io.covert.dns.collection.ResponseMetadata;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileStatus;
@@ -41,6 +43,8 @@ public class DumpResponses extends Configured implements Tool {
 		
 		Text key = new Text();
 		BytesWritable val = new BytesWritable();
+		// written by the collection job with the same setting
+		boolean metadata = conf.getBoolean("dns.collection.output.metadata", false);
 		
 		FileStatus[] listing;
 		Path inpath = new Path(args[0]);
@@ -61,6 +65,8 @@ public class DumpResponses extends Configured implements Tool {
 			{
 				Message msg = new Message(val.getBytes());
 				System.out.println(key+": "+msg);
+				if(metadata)
+					System.out.println("metadata: "+ResponseMetadata.read(val.getBytes(), val.getLength()));
 				System.out.println("---");
 			}
 			reader.close();
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A Bloom filter whose bits live in direct buffers, so a filter of hundreds of millions of keys
+ * neither counts against the heap nor gets copied around by the garbage collector.
+ *
+ * Keys are hashed once with 64 bit MurmurHash2 and the probes derived by double hashing
+ * (Kirsch and Mitzenmacher). Not thread safe.
+ */
+public class BloomFilter {
+
+	// 1 GB per buffer, a direct buffer can't be bigger than 2 GB
+	private static final int PAGE_SHIFT = 30;
+	private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	private static final int COPY_SIZE = 64 * 1024;
+
+	final long numBits;
+	final int numHashes;
+	final ByteBuffer[] pages;
+
+	public BloomFilter(long numBits, int numHashes)
+	{
+		if(numBits <= 0 || numHashes <= 0)
+			throw new IllegalArgumentException("Bad Bloom filter size: "+numBits+" bits, "+numHashes+" hashes");
+		this.numBits = numBits;
+		this.numHashes = numHashes;
+
+		long bytes = (numBits + 7) / 8;
+		pages = new ByteBuffer[(int)((bytes + PAGE_SIZE - 1) >>> PAGE_SHIFT)];
+		for(int i = 0; i < pages.length; ++i)
+			pages[i] = ByteBuffer.allocateDirect((int)Math.min(PAGE_SIZE, bytes - ((long)i << PAGE_SHIFT)));
+	}
+
+	/**
+	 * @return a filter sized for the given number of keys and false positive probability
+	 */
+	public static BloomFilter create(long expectedKeys, double fpp)
+	{
+		long numBits = (long)Math.ceil(-Math.max(1, expectedKeys) * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+		int numHashes = Math.max(1, (int)Math.round((double)numBits / Math.max(1, expectedKeys) * Math.log(2)));
+		return new BloomFilter(numBits, numHashes);
+	}
+
+	/**
+	 * @return true if the key was not in the filter before, false if it (probably) was
+	 */
+	public boolean add(byte[] key, int length)
+	{
+		long hash = hash(key, length);
+		long step = Long.rotateLeft(hash, 32) | 1;
+		boolean added = false;
+		for(int i = 0; i < numHashes; ++i)
+		{
+			long bit = ((hash + i * step) & Long.MAX_VALUE) % numBits;
+			ByteBuffer page = pages[(int)(bit >>> (PAGE_SHIFT + 3))];
+			int index = (int)((bit >>> 3) & (PAGE_SIZE - 1));
+			byte old = page.get(index);
+			byte mask = (byte)(1 << (bit & 7));
+			if((old & mask) == 0)
+			{
+				page.put(index, (byte)(old | mask));
+				added = true;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * @return false if the key is definitely not in the filter
+	 */
+	public boolean mightContain(byte[] key, int length)
+	{
+		long hash = hash(key, length);
+		long step = Long.rotateLeft(hash, 32) | 1;
+		for(int i = 0; i < numHashes; ++i)
+		{
+			long bit = ((hash + i * step) & Long.MAX_VALUE) % numBits;
+			ByteBuffer page = pages[(int)(bit >>> (PAGE_SHIFT + 3))];
+			if((page.get((int)((bit >>> 3) & (PAGE_SIZE - 1))) & (1 << (bit & 7))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Adds every key of another filter of the same size to this one.
+	 */
+	public void or(BloomFilter other)
+	{
+		if(other.numBits != numBits || other.numHashes != numHashes)
+			throw new IllegalArgumentException("Bloom filters differ in size: "+numBits+"/"+numHashes+" and "+other.numBits+"/"+other.numHashes);
+		for(int p = 0; p < pages.length; ++p)
+		{
+			ByteBuffer page = pages[p];
+			ByteBuffer from = other.pages[p];
+			int i = 0;
+			for(; i + 8 <= page.capacity(); i += 8)
+				page.putLong(i, page.getLong(i) | from.getLong(i));
+			for(; i < page.capacity(); ++i)
+				page.put(i, (byte)(page.get(i) | from.get(i)));
+		}
+	}
+
+	public void write(DataOutput out) throws IOException
+	{
+		out.writeLong(numBits);
+		out.writeInt(numHashes);
+		byte[] buffer = new byte[COPY_SIZE];
+		for(ByteBuffer page : pages)
+		{
+			ByteBuffer view = page.duplicate();
+			view.clear();
+			while(view.hasRemaining())
+			{
+				int n = Math.min(buffer.length, view.remaining());
+				view.get(buffer, 0, n);
+				out.write(buffer, 0, n);
+			}
+		}
+	}
+
+	public static BloomFilter read(DataInput in) throws IOException
+	{
+		BloomFilter filter = new BloomFilter(in.readLong(), in.readInt());
+		byte[] buffer = new byte[COPY_SIZE];
+		for(ByteBuffer page : filter.pages)
+		{
+			ByteBuffer view = page.duplicate();
+			view.clear();
+			while(view.hasRemaining())
+			{
+				int n = Math.min(buffer.length, view.remaining());
+				in.readFully(buffer, 0, n);
+				view.put(buffer, 0, n);
+			}
+		}
+		return filter;
+	}
+
+	public long getNumBits() {
+		return numBits;
+	}
+
+	public int getNumHashes() {
+		return numHashes;
+	}
+
+	// MurmurHash64A, the tail falls through from its last byte to its first
+	@SuppressWarnings("fallthrough")
+	static long hash(byte[] key, int length)
+	{
+		final long m = 0xc6a4a7935bd1e995L;
+		final int r = 47;
+		long h = 0x9747b28cL ^ (length * m);
+
+		int blocks = length >>> 3;
+		for(int i = 0; i < blocks; ++i)
+		{
+			int o = i << 3;
+			long k = (key[o] & 0xFFL) | ((key[o + 1] & 0xFFL) << 8) | ((key[o + 2] & 0xFFL) << 16) | ((key[o + 3] & 0xFFL) << 24)
+					| ((key[o + 4] & 0xFFL) << 32) | ((key[o + 5] & 0xFFL) << 40) | ((key[o + 6] & 0xFFL) << 48) | ((key[o + 7] & 0xFFL) << 56);
+			k *= m;
+			k ^= k >>> r;
+			k *= m;
+			h ^= k;
+			h *= m;
+		}
+
+		int tail = blocks << 3;
+		switch(length & 7)
+		{
+		case 7: h ^= (key[tail + 6] & 0xFFL) << 48;
+		case 6: h ^= (key[tail + 5] & 0xFFL) << 40;
+		case 5: h ^= (key[tail + 4] & 0xFFL) << 32;
+		case 4: h ^= (key[tail + 3] & 0xFFL) << 24;
+		case 3: h ^= (key[tail + 2] & 0xFFL) << 16;
+		case 2: h ^= (key[tail + 1] & 0xFFL) << 8;
+		case 1: h ^= key[tail] & 0xFFL;
+				h *= m;
+		}
+
+		h ^= h >>> r;
+		h *= m;
+		h ^= h >>> r;
+		return h;
+	}
+}
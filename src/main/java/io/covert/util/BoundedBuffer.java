@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.util;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed capacity ring buffer for handing work between threads. Producers park while the
+ * buffer is full and consumers park while it is empty, each side is signalled by the other
+ * instead of polling.
+ *
+ * Shutdown is done by calling {@link #close()}: producers may no longer add, consumers
+ * keep receiving the remaining elements and then get null once the buffer is drained.
+ */
+public class BoundedBuffer<T> {
+
+	final Object[] items;
+	int head = 0;
+	int tail = 0;
+	int count = 0;
+	boolean closed = false;
+	// bumped by wakeUp(), so a waiting poll can tell it was woken for work elsewhere
+	long wakeUps = 0;
+
+	final ReentrantLock lock = new ReentrantLock();
+	final Condition notEmpty = lock.newCondition();
+	final Condition notFull = lock.newCondition();
+
+	public BoundedBuffer(int capacity)
+	{
+		if(capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive: "+capacity);
+		items = new Object[capacity];
+	}
+
+	/**
+	 * Adds an element, waiting for space if necessary.
+	 *
+	 * @throws IllegalStateException if the buffer has been closed
+	 */
+	public void put(T item) throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try {
+			while(count == items.length && !closed)
+				notFull.await();
+			enqueue(item);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds an element if there is space for it, never waits.
+	 */
+	public boolean offer(T item)
+	{
+		lock.lock();
+		try {
+			if(count == items.length)
+				return false;
+			enqueue(item);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the next element, waiting for one if necessary.
+	 *
+	 * @return the next element or null if the buffer is closed and drained
+	 */
+	public T take() throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try {
+			while(count == 0 && !closed)
+				notEmpty.await();
+			return count == 0 ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes up to max elements at once, waiting for the first one if necessary.
+	 *
+	 * @return the number of elements added to into, 0 if the buffer is closed and drained
+	 */
+	public int takeAll(Collection<? super T> into, int max) throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try {
+			while(count == 0 && !closed)
+				notEmpty.await();
+			int n = Math.min(count, max);
+			for(int i = 0; i < n; ++i)
+			{
+				into.add(dequeue());
+			}
+			if(n > 1)
+				notFull.signalAll();
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the next element, waiting up to the timeout for one or until {@link #wakeUp()} is called.
+	 *
+	 * @return the next element or null if the buffer is empty
+	 */
+	public T poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			long woken = wakeUps;
+			while(count == 0 && !closed && nanos > 0 && woken == wakeUps)
+				nanos = notEmpty.awaitNanos(nanos);
+			return count == 0 ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the next element if there is one, never waits.
+	 */
+	public T poll()
+	{
+		lock.lock();
+		try {
+			return count == 0 ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Makes one consumer waiting in {@link #poll(long, TimeUnit)} return early, e.g. because
+	 * work it also takes from another source has come in.
+	 */
+	public void wakeUp()
+	{
+		lock.lock();
+		try {
+			wakeUps++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops accepting new elements and wakes up every waiting thread.
+	 */
+	public void close()
+	{
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true once the buffer is closed and every element has been taken
+	 */
+	public boolean isDrained()
+	{
+		lock.lock();
+		try {
+			return closed && count == 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size()
+	{
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int capacity()
+	{
+		return items.length;
+	}
+
+	private void enqueue(T item)
+	{
+		if(closed)
+			throw new IllegalStateException("buffer is closed");
+
+		items[tail] = item;
+		tail = (tail + 1) % items.length;
+		++count;
+		notEmpty.signal();
+	}
+
+	@SuppressWarnings("unchecked")
+	private T dequeue()
+	{
+		T item = (T)items[head];
+		items[head] = null;
+		head = (head + 1) % items.length;
+		--count;
+		notFull.signal();
+		return item;
+	}
+}
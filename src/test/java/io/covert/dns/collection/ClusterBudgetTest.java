@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.NIOServerCnxn;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+/**
+ * Runs budgets against an in-process ZooKeeper server. Budgets are renewed by the test, not
+ * by their own thread, so every step is deterministic.
+ */
+public class ClusterBudgetTest extends TestCase {
+
+	private static final String ROOT = "/dns-mining/budget";
+	private static final String JOB = "job_test";
+	private static final String SLICES = ROOT + "/" + JOB + "/ns1/slices";
+
+	File dataDir;
+	ZooKeeperServer server;
+	NIOServerCnxn.Factory factory;
+	String connectString;
+	ZooKeeper observer;
+	List<ClusterBudget> budgets = new ArrayList<ClusterBudget>();
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		dataDir = File.createTempFile("zookeeper", "");
+		dataDir.delete();
+		dataDir.mkdirs();
+		server = new ZooKeeperServer(dataDir, dataDir, 2000);
+		factory = new NIOServerCnxn.Factory(new InetSocketAddress("127.0.0.1", 0));
+		factory.startup(server);
+		connectString = "127.0.0.1:" + factory.getLocalPort();
+		observer = connect(new byte[0], 0);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		for(ClusterBudget budget : budgets)
+			budget.close();
+		observer.close();
+		factory.shutdown();
+		server.shutdown();
+		delete(dataDir);
+	}
+
+	public void testClaimAndRelease() throws Exception
+	{
+		NameserverRateLimiter limiter = limiter();
+		ClusterBudget budget = start("task0", limiter);
+
+		// alone, the first renew claims every slice and lifts the ceiling to the whole budget
+		assertEquals(10, budget.getSlices(0));
+		assertEquals(10, observer.getChildren(SLICES, false).size());
+		assertEquals(100.0, limiter.getRate(0), 0.001);
+
+		// a period without traffic keeps one slice
+		Thread.sleep(20);
+		budget.renew();
+		assertEquals(1, budget.getSlices(0));
+		assertEquals(9, budget.getReleases());
+		assertEquals(1, observer.getChildren(SLICES, false).size());
+		assertEquals(10.0, limiter.getRate(0), 0.001);
+
+		// traffic held back by the ceiling claims more again
+		saturate(limiter);
+		Thread.sleep(20);
+		budget.renew();
+		assertEquals(10, budget.getSlices(0));
+		assertEquals(19, budget.getClaims());
+
+		budget.close();
+		budgets.remove(budget);
+		assertEquals(0, observer.getChildren(SLICES, false).size());
+	}
+
+	public void testFairShare() throws Exception
+	{
+		NameserverRateLimiter first = limiter();
+		ClusterBudget a = start("task0", first);
+		assertEquals(10, a.getSlices(0));
+
+		// nothing is free, the second task waits for its share
+		NameserverRateLimiter second = limiter();
+		ClusterBudget b = start("task1", second);
+		assertEquals(0, b.getSlices(0));
+		assertEquals(ClusterBudget.IDLE_QPS, second.getRate(0), 0.001);
+
+		// the first task is busy, but gives back what is over its share
+		saturate(first);
+		Thread.sleep(20);
+		a.renew();
+		assertEquals(5, a.getSlices(0));
+
+		saturate(second);
+		Thread.sleep(20);
+		b.renew();
+		assertEquals(5, b.getSlices(0));
+		assertEquals(50.0, second.getRate(0), 0.001);
+
+		// a third task gets a share too
+		NameserverRateLimiter third = limiter();
+		ClusterBudget c = start("task2", third);
+		for(int round = 0; round < 2; ++round)
+		{
+			for(Object[] task : new Object[][] {{a, first}, {b, second}, {c, third}})
+			{
+				saturate((NameserverRateLimiter)task[1]);
+				Thread.sleep(20);
+				((ClusterBudget)task[0]).renew();
+			}
+		}
+		// the share is 10 / 3, whoever is busy first takes the slice left over
+		int total = 0;
+		for(ClusterBudget task : new ClusterBudget[] {a, b, c})
+		{
+			assertTrue(task.getSlices(0) >= 3 && task.getSlices(0) <= 4);
+			total += task.getSlices(0);
+		}
+		assertEquals(10, total);
+		assertEquals(10, observer.getChildren(SLICES, false).size());
+	}
+
+	public void testSessionExpiry() throws Exception
+	{
+		ClusterBudget a = start("task0", limiter());
+		assertEquals(10, a.getSlices(0));
+
+		// a session closed from elsewhere expires for its owner, like a task that died
+		connect(a.zk.getSessionPasswd(), a.zk.getSessionId()).close();
+		long deadline = System.currentTimeMillis() + 10000;
+		while(observer.getChildren(SLICES, false).size() > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		assertEquals(0, observer.getChildren(SLICES, false).size());
+
+		// the slices are free for everybody else
+		ClusterBudget b = start("task1", limiter());
+		assertEquals(10, b.getSlices(0));
+	}
+
+	private ClusterBudget start(String task, NameserverRateLimiter limiter) throws IOException, InterruptedException
+	{
+		// 10 slices of 10 qps, renewed only by the test
+		ClusterBudget budget = new ClusterBudget(connectString, 10000, ROOT, JOB, task,
+				new String[] {"ns1"}, 100, 10, 3600000L);
+		budget.start(limiter);
+		budgets.add(budget);
+		return budget;
+	}
+
+	private static NameserverRateLimiter limiter()
+	{
+		return new NameserverRateLimiter(1, 1000, 1, 1000, 5, 0.5, 0.05, 200);
+	}
+
+	// takes tokens until one has to wait, so the budget sees traffic held back by its ceiling
+	private static void saturate(NameserverRateLimiter limiter)
+	{
+		while(limiter.tryAcquire(0))
+			;
+	}
+
+	private ZooKeeper connect(byte[] password, long sessionId) throws IOException, InterruptedException
+	{
+		final Object connected = new Object();
+		Watcher watcher = new Watcher() {
+			@Override
+			public void process(WatchedEvent event) {
+				if(event.getState() == Event.KeeperState.SyncConnected)
+				{
+					synchronized (connected) {
+						connected.notifyAll();
+					}
+				}
+			}
+		};
+		synchronized (connected) {
+			ZooKeeper zk = sessionId == 0
+					? new ZooKeeper(connectString, 10000, watcher)
+					: new ZooKeeper(connectString, 10000, watcher, sessionId, password);
+			connected.wait(10000);
+			return zk;
+		}
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if(children != null)
+		{
+			for(File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.covert.dns.collection;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * Resolves against stand-in root, TLD and authoritative servers on loopback addresses
+ * (127.0.0.1 to 127.0.0.5, all on the loopback interface on Linux) sharing one port:
+ *
+ * - the root delegates test. to 127.0.0.2
+ * - 127.0.0.2 delegates example.test. and other.test. to 127.0.0.3 with glue, glueless.test.
+ *   to ns.example.test. without, short.test. with a TTL of 0, lame.test. to 127.0.0.3 and the
+ *   lame 127.0.0.4, dead.test. to the lame server alone, broken.test. to 127.0.0.3 and the
+ *   broken 127.0.0.5 and refused.test. to the broken server alone
+ * - 127.0.0.3 answers every name authoritatively
+ * - 127.0.0.4 refers every query back up to test.
+ * - 127.0.0.5 answers REFUSED for names in refused.test. and SERVFAIL for the rest
+ */
+public class IterativeResolverTest extends TestCase {
+
+	private static final long TIMEOUT_MS = 5000;
+
+	List<Server> servers = new ArrayList<Server>();
+	int port;
+	IterativeResolver resolver;
+	ResolverThread.Session session;
+
+	/**
+	 * Answers each query with what {@link #respond(Name, Message)} adds to it.
+	 */
+	abstract static class Server extends Thread
+	{
+		final DatagramSocket socket;
+		int queries = 0;
+
+		Server(String address, int port) throws IOException
+		{
+			socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName(address), port));
+			setDaemon(true);
+		}
+
+		abstract void respond(Name name, Message response) throws IOException;
+
+		@Override
+		public void run()
+		{
+			byte[] buffer = new byte[Message.MAXLENGTH];
+			while(!socket.isClosed())
+			{
+				try {
+					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+					socket.receive(packet);
+					synchronized(this) {
+						queries++;
+					}
+					Message query = new Message(Arrays.copyOf(buffer, packet.getLength()));
+					Message response = new Message(query.getHeader().getID());
+					response.getHeader().setFlag(Flags.QR);
+					response.addRecord(query.getQuestion(), Section.QUESTION);
+					respond(query.getQuestion().getName(), response);
+					byte[] wire = response.toWire();
+					socket.send(new DatagramPacket(wire, wire.length, packet.getSocketAddress()));
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		}
+
+		synchronized int getQueries() {
+			return queries;
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		Server root = new Server("127.0.0.1", 0) {
+			@Override
+			void respond(Name name, Message response) throws IOException {
+				refer(response, "test.", "ns.test.", "127.0.0.2", 3600);
+			}
+		};
+		port = root.socket.getLocalPort();
+		start(root);
+		start(new Server("127.0.0.2", port) {
+			@Override
+			void respond(Name name, Message response) throws IOException {
+				if(name.subdomain(Name.fromString("glueless.test.")))
+					refer(response, "glueless.test.", "ns.example.test.", null, 3600);
+				else if(name.subdomain(Name.fromString("short.test.")))
+					refer(response, "short.test.", "ns.short.test.", "127.0.0.3", 0);
+				else if(name.subdomain(Name.fromString("other.test.")))
+					refer(response, "other.test.", "ns.other.test.", "127.0.0.3", 3600);
+				else if(name.subdomain(Name.fromString("lame.test.")))
+				{
+					refer(response, "lame.test.", "ns1.lame.test.", "127.0.0.3", 3600);
+					refer(response, "lame.test.", "ns2.lame.test.", "127.0.0.4", 3600);
+				}
+				else if(name.subdomain(Name.fromString("dead.test.")))
+					refer(response, "dead.test.", "ns.dead.test.", "127.0.0.4", 3600);
+				else if(name.subdomain(Name.fromString("broken.test.")))
+				{
+					refer(response, "broken.test.", "ns1.broken.test.", "127.0.0.3", 3600);
+					refer(response, "broken.test.", "ns2.broken.test.", "127.0.0.5", 3600);
+				}
+				else if(name.subdomain(Name.fromString("refused.test.")))
+					refer(response, "refused.test.", "ns.refused.test.", "127.0.0.5", 3600);
+				else
+					refer(response, "example.test.", "ns.example.test.", "127.0.0.3", 3600);
+			}
+		});
+		start(new Server("127.0.0.3", port) {
+			@Override
+			void respond(Name name, Message response) throws IOException {
+				response.getHeader().setFlag(Flags.AA);
+				String address = name.toString().startsWith("ns.") ? "127.0.0.3"
+						: name.subdomain(Name.fromString("glueless.test.")) ? "10.0.0.2" : "10.0.0.1";
+				response.addRecord(new ARecord(name, DClass.IN, 60, InetAddress.getByName(address)), Section.ANSWER);
+			}
+		});
+		start(new Server("127.0.0.4", port) {
+			@Override
+			void respond(Name name, Message response) throws IOException {
+				refer(response, "test.", "ns.test.", "127.0.0.2", 3600);
+			}
+		});
+		start(new Server("127.0.0.5", port) {
+			@Override
+			void respond(Name name, Message response) throws IOException {
+				response.getHeader().setRcode(name.subdomain(Name.fromString("refused.test.")) ? Rcode.REFUSED : Rcode.SERVFAIL);
+			}
+		});
+
+		resolver = resolver(100);
+		session = new ResolverThread.Session(null);
+		session.encoder.setRecursionDesired(false);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		session.close();
+		for(Server server : servers)
+			server.socket.close();
+	}
+
+	public void testReferrals() throws Exception
+	{
+		Message response = resolve("www.example.test.");
+		assertAnswer(response, "10.0.0.1");
+		// root, TLD and the authoritative server
+		assertEquals(3, resolver.getQueries());
+		assertEquals(2, resolver.getReferrals());
+		assertEquals(0, resolver.getCacheHits());
+		assertEquals(2, resolver.getCacheSize());
+
+		// straight to the authoritative server
+		assertAnswer(resolve("mail.example.test."), "10.0.0.1");
+		assertEquals(4, resolver.getQueries());
+		assertEquals(2, resolver.getReferrals());
+		assertEquals(1, resolver.getCacheHits());
+		assertEquals(1, servers.get(0).getQueries());
+	}
+
+	public void testGlueless() throws Exception
+	{
+		assertAnswer(resolve("www.example.test."), "10.0.0.1");
+		long queries = resolver.getQueries();
+
+		// the TLD, then ns.example.test. from the cached delegation, then the name itself
+		assertAnswer(resolve("www.glueless.test."), "10.0.0.2");
+		assertEquals(queries + 3, resolver.getQueries());
+		assertEquals(3, resolver.getReferrals());
+		assertNotNull(resolver.lookup(Name.fromString("glueless.test."), System.currentTimeMillis()));
+	}
+
+	public void testLameServer() throws Exception
+	{
+		// whichever server is asked first, the lame one's referral back up is passed over
+		for(int i = 0; i < 10; ++i)
+			assertAnswer(resolve("www" + i + ".lame.test."), "10.0.0.1");
+
+		// with nothing better, its response is returned
+		Message response = resolve("www.dead.test.");
+		assertEquals(Rcode.NOERROR, response.getRcode());
+		assertFalse(response.getHeader().getFlag(Flags.AA));
+		assertEquals(0, response.getSectionArray(Section.ANSWER).length);
+	}
+
+	public void testBrokenServer() throws Exception
+	{
+		// whichever server is asked first, the SERVFAIL is passed over for the other one
+		for(int i = 0; i < 10; ++i)
+			assertAnswer(resolve("www" + i + ".broken.test."), "10.0.0.1");
+
+		// with nothing better, the error is returned
+		assertEquals(Rcode.REFUSED, resolve("www.refused.test.").getRcode());
+	}
+
+	public void testCacheTtl() throws Exception
+	{
+		assertAnswer(resolve("www.short.test."), "10.0.0.1");
+		assertEquals(2, resolver.getReferrals());
+
+		// the delegation of test. is still cached, the one of short.test. expired right away
+		assertAnswer(resolve("www.short.test."), "10.0.0.1");
+		assertEquals(3, resolver.getReferrals());
+		assertEquals(1, resolver.getCacheHits());
+		assertNull(resolver.lookup(Name.fromString("short.test."), System.currentTimeMillis()));
+	}
+
+	public void testCacheEviction() throws Exception
+	{
+		resolver = resolver(2);
+		assertAnswer(resolve("www.example.test."), "10.0.0.1");
+		// test. is used again, so example.test. is the least recently used
+		assertAnswer(resolve("www.other.test."), "10.0.0.1");
+		assertEquals(2, resolver.getCacheSize());
+		assertNull(resolver.lookup(Name.fromString("example.test."), System.currentTimeMillis()));
+		assertNotNull(resolver.lookup(Name.fromString("test."), System.currentTimeMillis()));
+
+		long referrals = resolver.getReferrals();
+		assertAnswer(resolve("www.example.test."), "10.0.0.1");
+		assertEquals(referrals + 1, resolver.getReferrals());
+	}
+
+	public void testTtl() throws Exception
+	{
+		Name child = Name.fromString("example.test.");
+		Message message = new Message();
+		// no NS records for the child, the most it is kept for
+		assertEquals(24 * 3600 * 1000L, IterativeResolver.getTtl(message, child));
+
+		message.addRecord(new NSRecord(child, DClass.IN, 0x7FFFFFFFL, Name.fromString("ns1.example.test.")), Section.AUTHORITY);
+		assertEquals(24 * 3600 * 1000L, IterativeResolver.getTtl(message, child));
+		message.addRecord(new NSRecord(child, DClass.IN, 300, Name.fromString("ns2.example.test.")), Section.AUTHORITY);
+		assertEquals(300 * 1000L, IterativeResolver.getTtl(message, child));
+	}
+
+	private void start(Server server)
+	{
+		servers.add(server);
+		server.start();
+	}
+
+	private IterativeResolver resolver(int cacheSize)
+	{
+		InetSocketAddress root = new InetSocketAddress(servers.get(0).socket.getLocalAddress(), port);
+		return new IterativeResolver(new InetSocketAddress[] {root}, port, 500, cacheSize);
+	}
+
+	private Message resolve(String name) throws IOException
+	{
+		session.encoder.encode(new DnsRequest(name, Type.A, DClass.IN), 1);
+		return new Message(resolver.resolve(session, System.currentTimeMillis() + TIMEOUT_MS));
+	}
+
+	private static void refer(Message response, String zone, String nameserver, String glue, long ttl) throws IOException
+	{
+		Name target = Name.fromString(nameserver);
+		response.addRecord(new NSRecord(Name.fromString(zone), DClass.IN, ttl, target), Section.AUTHORITY);
+		if(glue != null)
+			response.addRecord(new ARecord(target, DClass.IN, ttl, InetAddress.getByName(glue)), Section.ADDITIONAL);
+	}
+
+	private static void assertAnswer(Message response, String address) throws IOException
+	{
+		assertEquals(Rcode.NOERROR, response.getRcode());
+		assertTrue(response.getHeader().getFlag(Flags.AA));
+		Record[] answers = response.getSectionArray(Section.ANSWER);
+		assertEquals(1, answers.length);
+		assertEquals(InetAddress.getByName(address), ((ARecord)answers[0]).getAddress());
+	}
+}